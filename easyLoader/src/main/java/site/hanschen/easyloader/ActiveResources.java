@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import site.hanschen.easyloader.cache.CacheManager;
+
+/**
+ * 正在被ImageView或Target使用的Bitmap，按引用计数管理
+ *
+ * <p>Bitmap被使用期间从内存缓存中移出，不占用内存缓存的容量，也不会被淘汰；
+ * 最后一个使用者释放后再放回内存缓存。使用者被GC后，通过{@link EasyLoader}的ReferenceQueue释放</p>
+ */
+class ActiveResources {
+
+    /**
+     * 使用者的弱引用，被GC后由CleanupThread交给{@link #release(ResourceReference)}处理
+     */
+    static final class ResourceReference extends WeakReference<Object> {
+        private final Resource resource;
+        private       boolean  released;
+
+        ResourceReference(Object target, ReferenceQueue<Object> queue, Resource resource) {
+            super(target, queue);
+            this.resource = resource;
+        }
+    }
+
+    private static final class Resource {
+        final String  key;
+        final Bitmap  bitmap;
+        final boolean cacheable;
+        int acquired;
+
+        Resource(String key, Bitmap bitmap, boolean cacheable) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.cacheable = cacheable;
+        }
+    }
+
+    private final Map<String, Resource>          resources = new HashMap<>();
+    private final Map<Object, ResourceReference> bindings  = new WeakHashMap<>();
+    private final CacheManager<String, Bitmap>   memoryCache;
+    private final ReferenceQueue<Object>         referenceQueue;
+
+    ActiveResources(CacheManager<String, Bitmap> memoryCache, ReferenceQueue<Object> referenceQueue) {
+        this.memoryCache = memoryCache;
+        this.referenceQueue = referenceQueue;
+    }
+
+    synchronized Bitmap get(String key) {
+        Resource resource = resources.get(key);
+        return resource == null ? null : resource.bitmap;
+    }
+
+    /**
+     * target开始使用bitmap，若target之前在使用其他Bitmap，先释放
+     *
+     * @param cacheable 释放后是否放回内存缓存
+     */
+    synchronized void acquire(Object target, String key, Bitmap bitmap, boolean cacheable) {
+        ResourceReference previous = bindings.get(target);
+        if (previous != null) {
+            if (previous.resource.bitmap == bitmap) {
+                return;
+            }
+            release(previous);
+        }
+
+        Resource resource = resources.get(key);
+        if (resource == null || resource.bitmap != bitmap) {
+            // 同一个key可能存在多个Bitmap(比如跳过了内存缓存)，只记录最新的，旧的由各自的使用者释放
+            resource = new Resource(key, bitmap, cacheable);
+            resources.put(key, resource);
+            Bitmap cached = memoryCache.remove(key);
+            if (cached != null && cached != bitmap) {
+                memoryCache.put(key, cached);
+            }
+        }
+        resource.acquired++;
+        bindings.put(target, new ResourceReference(target, referenceQueue, resource));
+    }
+
+    /**
+     * target不再使用之前的Bitmap，比如请求被取消或者被新的请求替换
+     */
+    synchronized void release(Object target) {
+        ResourceReference reference = bindings.remove(target);
+        if (reference != null) {
+            release(reference);
+        }
+    }
+
+    synchronized void release(ResourceReference reference) {
+        if (reference.released) {
+            return;
+        }
+        reference.released = true;
+        reference.clear();
+
+        Resource resource = reference.resource;
+        if (--resource.acquired > 0) {
+            return;
+        }
+        if (resources.get(resource.key) == resource) {
+            resources.remove(resource.key);
+            if (resource.cacheable && !resource.bitmap.isRecycled()) {
+                memoryCache.put(resource.key, resource.bitmap);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (ResourceReference reference : bindings.values()) {
+            reference.released = true;
+            reference.clear();
+        }
+        bindings.clear();
+        resources.clear();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import java.util.concurrent.TimeUnit;
+
+import site.hanschen.easyloader.downloader.DownloadStats;
+import site.hanschen.easyloader.log.EasyLoaderLog;
+
+/**
+ * 根据测量的下载吞吐量和首字节时间(TTFB)调整下载线程数(AIMD)
+ *
+ * <p>每个统计窗口结束时，如果首字节时间明显超过基线、增加线程后吞吐量反而下降或者失败较多，
+ * 认为网络已经拥塞，线程数乘以{@link #DECREASE_FACTOR}；否则在所有线程都忙时加一。
+ * 网络变化后之前的测量数据不再有效，从{@link #INITIAL_LIMIT}重新开始</p>
+ */
+class AdaptiveConcurrency {
+
+    static final int DEFAULT_MIN_LIMIT = 1;
+    static final int DEFAULT_MAX_LIMIT = 8;
+
+    private static final int    INITIAL_LIMIT        = 3;
+    private static final long   WINDOW_NANOS         = TimeUnit.SECONDS.toNanos(1);
+    private static final int    MIN_WINDOW_SAMPLES   = 4;
+    /**
+     * 平均首字节时间超过基线的倍数
+     */
+    private static final double TTFB_TOLERANCE       = 2.0;
+    /**
+     * 增加线程后吞吐量低于之前的比例
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+    private static final double DECREASE_FACTOR      = 0.75;
+    /**
+     * 每个窗口基线上浮的比例，网络路径变化后基线可以慢慢跟上
+     */
+    private static final double BASELINE_DRIFT       = 1.05;
+
+    private final AdjustableExecutorService service;
+    private final int                       minLimit;
+    private final int                       maxLimit;
+    private       int                       limit;
+    private       long                      windowStart;
+    private       int                       windowSamples;
+    private       int                       windowFailures;
+    private       long                      windowBytes;
+    private       long                      windowTtfb;
+    private       double                    baselineTtfb;
+    private       double                    averageTtfb;
+    private       double                    throughput;
+    private       double                    lastThroughput;
+    private       boolean                   lastIncreased;
+    private       long                      sampleCount;
+    private       long                      failureCount;
+
+    AdaptiveConcurrency(AdjustableExecutorService service, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("minLimit <= 0 || maxLimit < minLimit");
+        }
+        this.service = service;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        reset();
+    }
+
+    /**
+     * 网络变化，重新开始测量
+     */
+    synchronized void reset() {
+        windowSamples = 0;
+        windowFailures = 0;
+        windowBytes = 0;
+        windowTtfb = 0;
+        baselineTtfb = 0;
+        averageTtfb = 0;
+        throughput = 0;
+        lastThroughput = 0;
+        lastIncreased = false;
+        sampleCount = 0;
+        failureCount = 0;
+        setLimit(Math.max(minLimit, Math.min(maxLimit, INITIAL_LIMIT)));
+    }
+
+    /**
+     * 一次下载完成
+     *
+     * @param ttfbNanos 发起请求到收到响应的时间
+     * @param bytes     下载的字节数
+     */
+    synchronized void onSuccess(long ttfbNanos, long bytes) {
+        long now = System.nanoTime();
+        startWindowIfNeeded(now);
+        sampleCount++;
+        windowSamples++;
+        windowBytes += bytes;
+        windowTtfb += ttfbNanos;
+        closeWindowIfNeeded(now);
+    }
+
+    /**
+     * 一次下载因为网络原因失败，比如超时，服务器返回的错误不算
+     */
+    synchronized void onFailure() {
+        long now = System.nanoTime();
+        startWindowIfNeeded(now);
+        failureCount++;
+        windowFailures++;
+        closeWindowIfNeeded(now);
+    }
+
+    synchronized DownloadStats getStats() {
+        return new DownloadStats(limit,
+                                 minLimit,
+                                 maxLimit,
+                                 throughput,
+                                 TimeUnit.NANOSECONDS.toMillis((long) averageTtfb),
+                                 TimeUnit.NANOSECONDS.toMillis((long) baselineTtfb),
+                                 sampleCount,
+                                 failureCount);
+    }
+
+    /**
+     * 窗口从第一个样本开始，避免空闲的时间拉低吞吐量
+     */
+    private void startWindowIfNeeded(long now) {
+        if (windowSamples == 0 && windowFailures == 0) {
+            windowStart = now;
+        }
+    }
+
+    private void closeWindowIfNeeded(long now) {
+        int total = windowSamples + windowFailures;
+        long elapsed = now - windowStart;
+        if (total < MIN_WINDOW_SAMPLES || elapsed < WINDOW_NANOS) {
+            return;
+        }
+
+        throughput = windowBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        if (windowSamples > 0) {
+            averageTtfb = (double) windowTtfb / windowSamples;
+            baselineTtfb = baselineTtfb == 0 ? averageTtfb : Math.min(baselineTtfb * BASELINE_DRIFT, averageTtfb);
+        }
+
+        boolean congested = windowFailures * 4 > total
+                || (windowSamples > 0 && averageTtfb > baselineTtfb * TTFB_TOLERANCE)
+                || (lastIncreased && throughput < lastThroughput * THROUGHPUT_TOLERANCE);
+        int newLimit = limit;
+        if (congested) {
+            newLimit = Math.max(minLimit, Math.min(limit - 1, (int) (limit * DECREASE_FACTOR)));
+        } else if (service.getActiveCount() >= limit || !service.getQueue().isEmpty()) {
+            // 只有线程都在忙时增加才有意义
+            newLimit = Math.min(maxLimit, limit + 1);
+        }
+        lastIncreased = newLimit > limit;
+        lastThroughput = throughput;
+
+        windowSamples = 0;
+        windowFailures = 0;
+        windowBytes = 0;
+        windowTtfb = 0;
+        setLimit(newLimit);
+    }
+
+    private void setLimit(int newLimit) {
+        if (newLimit == limit) {
+            return;
+        }
+        EasyLoaderLog.d("AdaptiveConcurrency", "limit: " + limit + " -> " + newLimit + ", throughput: " + (long) throughput + " B/s");
+        limit = newLimit;
+        service.setThreadCount(newLimit);
+    }
+}
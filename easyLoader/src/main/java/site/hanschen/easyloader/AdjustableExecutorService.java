@@ -15,15 +15,13 @@
  */
 package site.hanschen.easyloader;
 
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.Build;
 import android.support.annotation.NonNull;
-import android.telephony.TelephonyManager;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -32,24 +30,82 @@ import site.hanschen.easyloader.util.Utils;
 
 class AdjustableExecutorService extends ThreadPoolExecutor {
 
-    private static final int DEFAULT_THREAD_COUNT = 3;
+    static final int DEFAULT_THREAD_COUNT = 3;
+    /**
+     * 每个线程池排队任务数的默认上限，超过时丢弃过期和低优先级的任务
+     */
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+    /**
+     * 内存紧张时暂停低优先级任务的时长，期间没有新的通知就恢复
+     */
+    private static final long LOW_PRIORITY_PAUSE_MS = 10 * 1000;
 
-    AdjustableExecutorService() {
-        super(DEFAULT_THREAD_COUNT,
-              DEFAULT_THREAD_COUNT,
-              0,
-              TimeUnit.MILLISECONDS,
-              new PriorityBlockingQueue<Runnable>(),
-              new Utils.ThreadFactory());
+    private final List<PriorityFutureTask> deferredTasks  = new ArrayList<>();
+    private final Runnable                 resumeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            resumeLowPriority();
+        }
+    };
+    private final TagScheduler             tagScheduler;
+    private final TagFairQueue             queue;
+    private volatile boolean               lowPriorityPaused;
+
+    /**
+     * @param threadCount   初始的线程数，只有下载的线程池会通过{@link #setThreadCount(int)}调整
+     * @param tagScheduler  各tag的权重和并发上限，同一个EasyLoader的所有线程池共用
+     * @param queueCapacity 排队任务数的上限，超过时丢弃任务
+     */
+    AdjustableExecutorService(int threadCount, TagScheduler tagScheduler, int queueCapacity) {
+        this(threadCount, tagScheduler, new TagFairQueue(tagScheduler, queueCapacity));
+    }
+
+    private AdjustableExecutorService(int threadCount, TagScheduler tagScheduler, TagFairQueue queue) {
+        super(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, queue, new Utils.ThreadFactory());
+        this.tagScheduler = tagScheduler;
+        this.queue = queue;
+    }
+
+    TagScheduler getTagScheduler() {
+        return tagScheduler;
+    }
+
+    int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+
+    /**
+     * @return 排队的任务数和丢弃的任务数
+     */
+    QueueStats queueStats() {
+        return queue.queueStats();
+    }
+
+    /**
+     * @return 这个线程池中每个tag排队和执行中的任务数
+     */
+    Map<Object, TagStats> tagStats() {
+        return queue.snapshot();
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        queue.onStart(r);
     }
 
-    void adjustThreadCount(NetworkInfo info) {
-        setThreadCount(getThreadCount(info));
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        queue.onFinish(r);
+        super.afterExecute(r, t);
     }
 
-    private void setThreadCount(int threadCount) {
+    /**
+     * 修改线程数，下载的线程池由{@link AdaptiveConcurrency}调用
+     */
+    void setThreadCount(int threadCount) {
         EasyLoaderLog.d("ThreadPoolExecutor", "setThreadCount: " + threadCount);
-        if (Build.VERSION.SDK_INT > 23) {
+        if (threadCount > getMaximumPoolSize()) {
             setMaximumPoolSize(threadCount);
             setCorePoolSize(threadCount);
         } else {
@@ -58,52 +114,149 @@ class AdjustableExecutorService extends ThreadPoolExecutor {
         }
     }
 
-    private int getThreadCount(NetworkInfo info) {
-        if (info == null || !info.isConnectedOrConnecting()) {
-            return DEFAULT_THREAD_COUNT;
-        }
-        switch (info.getType()) {
-            case ConnectivityManager.TYPE_WIFI:
-            case ConnectivityManager.TYPE_WIMAX:
-            case ConnectivityManager.TYPE_ETHERNET:
-                return 4;
-            case ConnectivityManager.TYPE_MOBILE:
-                switch (info.getSubtype()) {
-                    case TelephonyManager.NETWORK_TYPE_LTE:  // 4G
-                    case TelephonyManager.NETWORK_TYPE_HSPAP:
-                    case TelephonyManager.NETWORK_TYPE_EHRPD:
-                        return 3;
-                    case TelephonyManager.NETWORK_TYPE_UMTS: // 3G
-                    case TelephonyManager.NETWORK_TYPE_CDMA:
-                    case TelephonyManager.NETWORK_TYPE_EVDO_0:
-                    case TelephonyManager.NETWORK_TYPE_EVDO_A:
-                    case TelephonyManager.NETWORK_TYPE_EVDO_B:
-                        return 2;
-                    case TelephonyManager.NETWORK_TYPE_GPRS: // 2G
-                    case TelephonyManager.NETWORK_TYPE_EDGE:
-                        return 1;
-                    default:
-                        return DEFAULT_THREAD_COUNT;
-                }
-            default:
-                return DEFAULT_THREAD_COUNT;
+    /**
+     * 暂停{@link Priority#LOW}的任务，已经在执行的任务不受影响，
+     * 轮到被暂停的任务时先放到等待列表中，{@link #LOW_PRIORITY_PAUSE_MS}后重新提交。重复调用会延长暂停时间
+     */
+    void pauseLowPriority() {
+        lowPriorityPaused = true;
+        EasyLoader.HANDLER.removeCallbacks(resumeRunnable);
+        EasyLoader.HANDLER.postDelayed(resumeRunnable, LOW_PRIORITY_PAUSE_MS);
+    }
+
+    void resumeLowPriority() {
+        List<PriorityFutureTask> tasks;
+        synchronized (deferredTasks) {
+            lowPriorityPaused = false;
+            tasks = new ArrayList<>(deferredTasks);
+            deferredTasks.clear();
+        }
+        if (isShutdown()) {
+            return;
+        }
+        for (PriorityFutureTask task : tasks) {
+            if (!task.isCancelled()) {
+                execute(task);
+            }
+        }
+    }
+
+    /**
+     * @return 任务是否被暂停
+     */
+    private boolean deferIfPaused(PriorityFutureTask task) {
+        if (!lowPriorityPaused || task.hunter.getPriority() != Priority.LOW) {
+            return false;
+        }
+        synchronized (deferredTasks) {
+            if (!lowPriorityPaused) {
+                return false;
+            }
+            deferredTasks.add(task);
+            return true;
+        }
+    }
+
+    /**
+     * 任务的优先级变化后重新排队
+     *
+     * <p>队列只在插入时排序，直接修改队列中任务的优先级会破坏堆的顺序，
+     * 因此先从队列中移除，更新优先级后重新插入；已经开始执行的任务不受影响</p>
+     */
+    static void reprioritize(Future<?> future) {
+        if (future instanceof PriorityFutureTask) {
+            PriorityFutureTask task = (PriorityFutureTask) future;
+            task.service.reprioritize(task);
+        }
+    }
+
+    private void reprioritize(PriorityFutureTask task) {
+        if (isShutdown()) {
+            return;
+        }
+        if (getQueue().remove(task)) {
+            task.updatePriority();
+            execute(task);
+            return;
+        }
+        // 被暂停的低优先级任务提高优先级后立即提交
+        if (task.hunter.getPriority() != Priority.LOW) {
+            boolean deferred;
+            synchronized (deferredTasks) {
+                deferred = deferredTasks.remove(task);
+            }
+            if (deferred) {
+                task.updatePriority();
+                execute(task);
+            }
         }
     }
 
     @Override
     @NonNull
     public Future<?> submit(Runnable task) {
-        PriorityFutureTask futureTask = new PriorityFutureTask((BitmapHunter) task);
+        PriorityFutureTask futureTask = new PriorityFutureTask(this, (BitmapHunter) task);
         execute(futureTask);
         return futureTask;
     }
 
-    private static final class PriorityFutureTask extends FutureTask<BitmapHunter> implements Comparable<PriorityFutureTask> {
-        private final BitmapHunter hunter;
+    private static final class PriorityFutureTask extends FutureTask<BitmapHunter>
+            implements Comparable<PriorityFutureTask>, TagFairQueue.Task {
+        private final AdjustableExecutorService service;
+        private final BitmapHunter              hunter;
+        private final Object                    tag;
+        /**
+         * 插入队列时的优先级，在队列中时不能修改
+         */
+        private       Priority                  priority;
 
-        PriorityFutureTask(BitmapHunter hunter) {
+        PriorityFutureTask(AdjustableExecutorService service, BitmapHunter hunter) {
             super(hunter, null);
+            this.service = service;
             this.hunter = hunter;
+            this.tag = hunter.getTag();
+            this.priority = hunter.getPriority();
+        }
+
+        void updatePriority() {
+            priority = hunter.getPriority();
+        }
+
+        @Override
+        public Object getTag() {
+            return tag;
+        }
+
+        @Override
+        public Priority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public int getSequence() {
+            return hunter.getSequence();
+        }
+
+        @Override
+        public boolean isStale() {
+            return hunter.isStale();
+        }
+
+        /**
+         * 可能在持有其他hunter的锁的线程中调用，交给Dispatcher线程处理
+         */
+        @Override
+        public void shed() {
+            cancel(false);
+            hunter.dispatchShed();
+        }
+
+        @Override
+        public void run() {
+            if (service.deferIfPaused(this)) {
+                return;
+            }
+            super.run();
         }
 
         /**
@@ -115,8 +268,8 @@ class AdjustableExecutorService extends ThreadPoolExecutor {
         @Override
         public int compareTo(PriorityFutureTask another) {
 
-            Priority own = hunter.getPriority();
-            Priority other = another.hunter.getPriority();
+            Priority own = priority;
+            Priority other = another.priority;
 
             if (own == other) {
                 if (hunter.getLoader().getQueueProcessType() == QueueProcessType.FIFO) {
@@ -20,6 +20,7 @@ import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.net.NetworkInfo;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
@@ -29,13 +30,21 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import site.hanschen.easyloader.action.Action;
+import site.hanschen.easyloader.bean.CacheMetadata;
+import site.hanschen.easyloader.cache.BitmapPool;
 import site.hanschen.easyloader.cache.CacheManager;
+import site.hanschen.easyloader.cache.MetadataCacheManager;
+import site.hanschen.easyloader.cache.PartitionedDiskCache;
 import site.hanschen.easyloader.downloader.ResponseException;
 import site.hanschen.easyloader.request.Request;
 import site.hanschen.easyloader.request.RequestHandler;
 import site.hanschen.easyloader.request.Result;
 import site.hanschen.easyloader.util.BitmapUtils;
+import site.hanschen.easyloader.util.CancellableInputStream;
+import site.hanschen.easyloader.util.CancellationSignal;
 import site.hanschen.easyloader.util.CloseUtils;
+import site.hanschen.easyloader.util.SingleFlight;
+import site.hanschen.easyloader.util.SingleFlight.Ticket;
 import site.hanschen.easyloader.util.Utils;
 
 import static android.media.ExifInterface.ORIENTATION_FLIP_HORIZONTAL;
@@ -46,10 +55,35 @@ import static android.media.ExifInterface.ORIENTATION_ROTATE_90;
 import static android.media.ExifInterface.ORIENTATION_TRANSPOSE;
 import static android.media.ExifInterface.ORIENTATION_TRANSVERSE;
 import static site.hanschen.easyloader.DiskPolicy.shouldReadFromDiskCache;
+import static site.hanschen.easyloader.DiskPolicy.shouldReadResultFromDiskCache;
+import static site.hanschen.easyloader.DiskPolicy.shouldWriteToDiskCache;
 import static site.hanschen.easyloader.MemoryPolicy.shouldReadFromMemoryCache;
 
 
-public class BitmapHunter implements Runnable {
+public class BitmapHunter implements Runnable, SingleFlight.Listener<Bitmap> {
+
+    /**
+     * 加载的阶段，每个阶段在各自的线程池中执行，慢速的下载不会占用读取磁盘缓存和解码的线程
+     */
+    enum Stage {
+        /**
+         * 读取内存、磁盘缓存以及本地数据
+         */
+        DISK,
+        /**
+         * 下载网络数据
+         */
+        NETWORK,
+        /**
+         * 解码和变换，线程数与CPU核数相同
+         */
+        DECODE
+    }
+
+    private static final int PENDING_REQUEST      = 0;
+    private static final int PENDING_RESULT_CACHE = 1;
+    private static final int PENDING_SOURCE_CACHE = 2;
+
     /**
      * Global lock for bitmap decoding to ensure that we are only are decoding one at a time. Since
      * this will only ever happen in background threads we help avoid excessive memory thrashing as
@@ -66,54 +100,103 @@ public class BitmapHunter implements Runnable {
 
     private static final AtomicInteger SEQUENCE_GENERATOR = new AtomicInteger();
 
-    private final EasyLoader                   loader;
-    private final Dispatcher                   dispatcher;
-    private final int                          sequence;
-    private final CacheManager<String, Bitmap> memoryCache;
-    private final CacheManager<String, Bitmap> diskCache;
-    private final String                       key;
-    private final Request                      data;
-    private final int                          memoryPolicy;
-    private final int                          diskPolicy;
-    private final RequestHandler               requestHandler;
+    private final EasyLoader                        loader;
+    private final Dispatcher                        dispatcher;
+    private final int                               sequence;
+    private final CacheManager<String, Bitmap>      memoryCache;
+    private final CacheManager<String, InputStream> diskCache;
+    private final String                            key;
+    private final Request                           data;
+    private final int                               memoryPolicy;
+    private final int                               diskPolicy;
+    private final RequestHandler                    requestHandler;
+    private final SourceFetcher.Ticket              sourceTicket;
+    /**
+     * 被取消时中止正在进行的解码，下载由{@link #sourceTicket}中止
+     */
+    private final CancellationSignal                cancellation;
+    /**
+     * 创建时的请求的tag，用于线程池按tag公平调度
+     */
+    private final Object                            tag;
     /**
      * 相同请求会放入这个列表
      */
-    private       Action                       action;
-    private       List<Action>                 actions;
-    private       Bitmap                       result;
-    private       Future<?>                    future;
-    private       LoadedFrom                   loadedFrom;
-    private       Exception                    exception;
-    private       int                          exifOrientation; // Determined during decoding of original resource.
-    private       int                          retryCount;
-    private       Priority                     priority;
+    private       Action                            action;
+    private       List<Action>                      actions;
+    /**
+     * action和actions的快照，attach/detach时更新，供线程池在不加锁的情况下判断请求是否还需要
+     */
+    private volatile Action[]                       attached;
+    private       Bitmap                            result;
+    private volatile Future<?>                      future;
+    private       LoadedFrom                        loadedFrom;
+    private       Exception                         exception;
+    private       int                               exifOrientation; // Determined during decoding of original resource.
+    private       int                               retryCount;
+    private volatile Priority                       priority;
+    /**
+     * 结果同时交给了其他等待的请求，不能放回缓存池
+     */
+    private       boolean                           shared;
+    /**
+     * 结果在放入内存缓存时被保护，交付后释放
+     */
+    private       boolean                           pinned;
+    private       boolean                           cancelled;
+    private       boolean                           running;
+    /**
+     * 等待相同请求加载完成
+     */
+    private       boolean                           waiting;
+    private       Stage                             stage;
+    private       Ticket<String, Bitmap>            flight;
+    /**
+     * 阶段之间传递的数据，每个阶段只在一个线程中执行，线程池的提交保证可见性
+     */
+    private       InputStream                       pendingStream;
+    private       Bitmap                            pendingBitmap;
+    private       int                               pendingSource;
+    private       Bitmap                            decoded;
+    private       CacheManager<String, InputStream> sourceCache;
+    private       String                            sourceKey;
+    private       CacheMetadata                     cached;
+    /**
+     * 下载失败后使用过期的缓存数据时，缓存的数据无法解码则抛出这个异常
+     */
+    private       IOException                       staleError;
+    private       boolean                           skipResultCache;
+    private       boolean                           skipSourceCache;
 
     private BitmapHunter(EasyLoader loader,
                          Dispatcher dispatcher,
                          CacheManager<String, Bitmap> memoryCache,
-                         CacheManager<String, Bitmap> diskCache,
+                         CacheManager<String, InputStream> diskCache,
                          Action action,
                          RequestHandler requestHandler) {
         this.sequence = SEQUENCE_GENERATOR.incrementAndGet();
         this.loader = loader;
         this.dispatcher = dispatcher;
         this.memoryCache = memoryCache;
-        this.diskCache = diskCache;
         this.action = action;
         this.key = action.getKey();
         this.data = action.getRequest();
+        this.diskCache = selectPartition(diskCache, data);
         this.priority = action.getPriority();
         this.memoryPolicy = action.getMemoryPolicy();
         this.diskPolicy = action.getDiskPolicy();
         this.requestHandler = requestHandler;
         this.retryCount = requestHandler.getRetryCount();
+        this.sourceTicket = new SourceFetcher.Ticket();
+        this.cancellation = new CancellationSignal();
+        this.tag = action.getTag() == action ? TagStats.UNTAGGED : action.getTag();
+        this.attached = new Action[]{action};
     }
 
     public static BitmapHunter forRequest(EasyLoader loader,
                                           Dispatcher dispatcher,
                                           CacheManager<String, Bitmap> memoryCache,
-                                          CacheManager<String, Bitmap> diskCache,
+                                          CacheManager<String, InputStream> diskCache,
                                           Action action) {
         Request request = action.getRequest();
         List<RequestHandler> requestHandlers = loader.getRequestHandlers();
@@ -139,7 +222,8 @@ public class BitmapHunter implements Runnable {
         markStream.allowMarksToExpire(false);
         long mark = markStream.savePosition(1024);
 
-        final BitmapFactory.Options options = BitmapUtils.createBitmapOptions(request);
+        final BitmapPool pool = loader.getBitmapPool();
+        final BitmapFactory.Options options = BitmapUtils.createBitmapOptions(request, pool);
         final boolean calculateSize = BitmapUtils.requiresInSampleSize(options);
 
         boolean isWebPFile = Utils.isWebPFile(stream);
@@ -152,17 +236,38 @@ public class BitmapHunter implements Runnable {
             byte[] bytes = Utils.toByteArray(stream);
             if (calculateSize) {
                 BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
-                BitmapUtils.calculateInSampleSize(request.targetWidth, request.targetHeight, options, request);
+                BitmapUtils.calculateInSampleSize(request.targetWidth, request.targetHeight, options, request, pool);
+            }
+            try {
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            } catch (IllegalArgumentException e) {
+                if (options == null || options.inBitmap == null) {
+                    throw e;
+                }
+                BitmapUtils.releaseInBitmap(options, pool);
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
             }
-            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
         } else {
             if (calculateSize) {
                 BitmapFactory.decodeStream(stream, null, options);
-                BitmapUtils.calculateInSampleSize(request.targetWidth, request.targetHeight, options, request);
+                BitmapUtils.calculateInSampleSize(request.targetWidth, request.targetHeight, options, request, pool);
                 markStream.reset(mark);
             }
-            markStream.allowMarksToExpire(true);
-            Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
+            // 复用inBitmap失败时需要从头重新解码，因此不能让mark失效
+            final boolean reuse = options != null && options.inBitmap != null;
+            markStream.allowMarksToExpire(!reuse);
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeStream(stream, null, options);
+            } catch (IllegalArgumentException e) {
+                if (!reuse) {
+                    throw e;
+                }
+                BitmapUtils.releaseInBitmap(options, pool);
+                markStream.reset(mark);
+                markStream.allowMarksToExpire(true);
+                bitmap = BitmapFactory.decodeStream(stream, null, options);
+            }
             if (bitmap == null) {
                 // Treat null as an IO exception, we will eventually retry.
                 throw new IOException("Failed to decode stream.");
@@ -171,34 +276,153 @@ public class BitmapHunter implements Runnable {
         }
     }
 
+    /**
+     * 在当前阶段的线程池中执行一个阶段，需要下一个阶段时交给对应的线程池，全部完成后分发结果
+     */
     @Override
     public void run() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            running = true;
+        }
 
         updateThreadName(data);
+        Bitmap bitmap = null;
+        Throwable error = null;
         try {
-            result = hunt();
+            if (stage == Stage.DISK && flight == null) {
+                bitmap = loadFromMemory();
+                if (bitmap != null) {
+                    synchronized (this) {
+                        running = false;
+                    }
+                    deliver(bitmap, null);
+                    return;
+                }
+                // 相同的请求正在加载时等待它完成，由onComplete分发结果
+                synchronized (this) {
+                    waiting = true;
+                    flight = loader.getHuntFlights().begin(key, this);
+                    if (flight == null) {
+                        running = false;
+                        return;
+                    }
+                    waiting = false;
+                }
+            }
+            Stage next = runStage(stage);
+            if (next != null) {
+                if (!dispatcher.submitStage(this, next)) {
+                    // 已经被取消或者线程池已关闭
+                    synchronized (this) {
+                        abandon();
+                    }
+                }
+                return;
+            }
+            bitmap = decoded;
+            decoded = null;
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            Thread.currentThread().setName(Utils.THREAD_IDLE_NAME);
+        }
+        Ticket<String, Bitmap> ticket;
+        synchronized (this) {
+            running = false;
+            if (cancelled && error != null) {
+                // 被取消而中止，等待的相同请求重新开始，不需要分发
+                abandon();
+                return;
+            }
+            ticket = flight;
+            flight = null;
+        }
+        if (ticket != null) {
+            shared = ticket.complete(bitmap, error);
+        }
+        deliver(bitmap, error);
+    }
+
+    /**
+     * 交给stage对应的线程池执行，在当前阶段中调用时当前阶段随之结束
+     *
+     * @return 是否已提交，已经被取消或者线程池已关闭时返回false
+     */
+    synchronized boolean submit(Stage stage, AdjustableExecutorService executor) {
+        running = false;
+        if (cancelled || executor.isShutdown()) {
+            return false;
+        }
+        if (stage == Stage.DISK) {
+            // 从头开始，比如重试
+            flight = null;
+            staleError = null;
+        }
+        this.stage = stage;
+        future = executor.submit(this);
+        return true;
+    }
+
+    /**
+     * 放弃正在进行的加载，等待这个请求的相同请求会重新开始
+     */
+    private void abandon() {
+        CloseUtils.close(pendingStream);
+        pendingStream = null;
+        pendingBitmap = null;
+        if (flight != null) {
+            flight.abandon();
+            flight = null;
+        }
+    }
+
+    /**
+     * 相同请求的加载结束，在加载的线程中回调
+     */
+    @Override
+    public void onComplete(Bitmap value, Throwable error, boolean abandoned) {
+        synchronized (this) {
+            waiting = false;
+        }
+        if (abandoned) {
+            // 加载的请求被取消，重新开始
+            dispatcher.submitStage(this, Stage.DISK);
+            return;
+        }
+        // 由其他请求加载并写入缓存，这里按内存命中处理，不重复写入缓存
+        loadedFrom = LoadedFrom.MEMORY;
+        shared = true;
+        deliver(value, error);
+    }
+
+    private void deliver(Bitmap bitmap, Throwable error) {
+        if (error == null) {
+            result = bitmap;
             if (result == null) {
                 dispatcher.dispatchFailed(this);
             } else {
                 dispatcher.dispatchSuccess(this);
             }
-        } catch (ResponseException e) {
-            if (e.getResponseCode() != 504) {
-                exception = e;
+        } else if (error instanceof ResponseException) {
+            if (((ResponseException) error).getResponseCode() != 504) {
+                exception = (ResponseException) error;
             }
             dispatcher.dispatchFailed(this);
-        } catch (IOException e) {
-            exception = e;
+        } else if (error instanceof IOException) {
+            exception = (IOException) error;
             dispatcher.dispatchRetry(this);
-        } catch (OutOfMemoryError e) {
+        } else if (error instanceof OutOfMemoryError) {
             StringWriter writer = new StringWriter();
-            exception = new RuntimeException(writer.toString(), e);
+            exception = new RuntimeException(writer.toString(), error);
             dispatcher.dispatchFailed(this);
-        } catch (Exception e) {
-            exception = e;
+        } else if (error instanceof Exception) {
+            exception = (Exception) error;
             dispatcher.dispatchFailed(this);
-        } finally {
-            Thread.currentThread().setName(Utils.THREAD_IDLE_NAME);
+        } else {
+            throw (Error) error;
         }
     }
 
@@ -213,53 +437,238 @@ public class BitmapHunter implements Runnable {
     }
 
     /**
-     * 抓取Bitmap并对其进行处理
+     * 抓取Bitmap并对其进行处理，所有阶段都在当前线程执行
      *
      * @return 处理完成后的Bitmap
      * @throws IOException
      */
     public Bitmap hunt() throws IOException {
 
-        Bitmap bitmap = null;
+        Bitmap bitmap = loadFromMemory();
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        // get()和Dispatcher提交的相同请求同一时刻只加载一次，其余的等待并共享结果
+        SingleFlight.Outcome<Bitmap> outcome = loader.getHuntFlights().execute(key, new SingleFlight.Call<Bitmap>() {
+            @Override
+            public Bitmap call() throws IOException {
+                Stage next = Stage.DISK;
+                while (next != null) {
+                    next = runStage(next);
+                }
+                Bitmap loaded = decoded;
+                decoded = null;
+                return loaded;
+            }
+        });
+        shared = outcome.shared;
+        if (outcome.joined) {
+            // 由其他请求加载并写入缓存，这里按内存命中处理，不重复写入缓存
+            loadedFrom = LoadedFrom.MEMORY;
+        }
+        return outcome.value;
+    }
 
-        if (shouldReadFromMemoryCache(memoryPolicy)) {
+    /**
+     * 正在显示的Bitmap不在内存缓存中，需要先检查
+     */
+    private Bitmap loadFromMemory() {
+        if (!shouldReadFromMemoryCache(memoryPolicy)) {
+            return null;
+        }
+        Bitmap bitmap = loader.getActiveResources().get(key);
+        if (bitmap == null) {
             bitmap = memoryCache.get(key);
-            if (bitmap != null) {
-                loadedFrom = LoadedFrom.MEMORY;
-                return bitmap;
+        }
+        if (bitmap != null) {
+            loadedFrom = LoadedFrom.MEMORY;
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return 下一个阶段，已经得到最终结果时返回null
+     */
+    private Stage runStage(Stage stage) throws IOException {
+        switch (stage) {
+            case DISK:
+                return loadFromDisk();
+            case NETWORK:
+                return loadFromNetwork();
+            case DECODE:
+                return decode();
+            default:
+                throw new AssertionError("Unknown stage: " + stage);
+        }
+    }
+
+    /**
+     * 读取磁盘缓存，本地数据(文件、ContentProvider等)直接由RequestHandler读取
+     */
+    private Stage loadFromDisk() throws IOException {
+
+        if (diskCache != null && !skipResultCache && shouldReadResultFromDiskCache(diskPolicy)) {
+            // 处理结果同样经过decodeStream解码，使用请求的Bitmap.Config并复用BitmapPool中的内存
+            InputStream is = diskCache.get(key);
+            if (is != null) {
+                return pending(is, null, LoadedFrom.DISK, PENDING_RESULT_CACHE);
             }
         }
 
-        if (shouldReadFromDiskCache(diskPolicy)) {
-            bitmap = diskCache.get(key);
-            if (bitmap != null) {
-                loadedFrom = LoadedFrom.DISK;
-                return bitmap;
+        if (requestHandler.supportsSourceCache()) {
+            // 原始数据与目标尺寸无关，不同尺寸的请求共用同一份缓存
+            sourceCache = loader.getSourceCacheManager();
+            // 同时用于合并相同URI的下载，没有磁盘缓存时也需要
+            sourceKey = Utils.createSourceKey(data);
+            // 原始数据的HTTP缓存信息，没有缓存时为null
+            cached = skipSourceCache ? null : getMetadata(sourceCache, sourceKey);
+        }
+
+        if (sourceCache != null && !skipSourceCache && shouldReadFromDiskCache(diskPolicy) && (cached == null || cached.isFresh(System.currentTimeMillis()))) {
+            InputStream is = sourceCache.get(sourceKey);
+            if (is != null) {
+                return pending(is, null, LoadedFrom.DISK, PENDING_SOURCE_CACHE);
             }
         }
 
-        Result result = requestHandler.handle(data);
-        if (result != null) {
+        if (sourceKey != null) {
+            return Stage.NETWORK;
+        }
+        return pending(requestHandler.handle(data));
+    }
 
-            loadedFrom = result.getLoadedFrom();
-            exifOrientation = result.getExifOrientation();
-            bitmap = result.getBitmap();
-            // 图片可能保存在InputStream而不是bitmap，比如NetworkRequestHandler
-            if (bitmap == null) {
+    /**
+     * 下载原始数据，缓存已过期或者不读取缓存时，带校验信息发送条件请求
+     */
+    private Stage loadFromNetwork() throws IOException {
+        Result result;
+        // 数据是否由相同URI的其他请求下载，由下载的请求负责写入磁盘缓存
+        boolean joined;
+        try {
+            result = fetchSource(cached);
+            joined = sourceTicket.isJoined();
+        } catch (IOException e) {
+            // 无法校验时，允许读取缓存的请求使用过期的数据
+            InputStream is = cached != null && shouldReadFromDiskCache(diskPolicy) ? sourceCache.get(sourceKey) : null;
+            if (is == null) {
+                throw e;
+            }
+            staleError = e;
+            return pending(is, null, LoadedFrom.DISK, PENDING_SOURCE_CACHE);
+        }
+
+        if (result != null && result.isNotModified()) {
+            if (cached != null) {
+                // 304，刷新过期时间后使用缓存的数据
+                updateMetadata(sourceCache, sourceKey, cached.refresh(result.getMetadata()));
+                InputStream is = sourceCache.get(sourceKey);
+                if (is != null) {
+                    return pending(is, null, LoadedFrom.DISK, PENDING_SOURCE_CACHE);
+                }
+            }
+            // 缓存的数据在此期间被淘汰时重新下载，同样和其他请求合并
+            result = fetchSource(null);
+            joined = sourceTicket.isJoined();
+        }
+
+        if (result != null && result.getStream() != null && sourceCache != null && shouldWriteToDiskCache(diskPolicy) && !joined) {
+            // 先保存原始数据，之后不同尺寸的请求都从原始数据解码
+            // SourceFetcher已经把数据读入内存，直接使用，不再拷贝
+            byte[] bytes = sourceTicket.takeBytes();
+            if (bytes == null) {
                 InputStream is = result.getStream();
                 try {
-                    bitmap = decodeStream(is, data);
+                    bytes = Utils.toByteArray(is);
                 } finally {
                     CloseUtils.close(is);
                 }
             }
+            loader.getDiskCacheWriter()
+                  .enqueue(sourceCache, sourceKey, new ByteArrayInputStream(bytes), result.getMetadata(), priority);
+            result = result.withStream(new ByteArrayInputStream(bytes));
         }
+        return pending(result);
+    }
 
-        if (bitmap != null) {
+    /**
+     * 通过{@link SourceFetcher}下载，合并相同的请求，下载由{@link #sourceTicket}中止
+     *
+     * @param validators 条件请求使用的缓存信息，为null时下载完整的数据
+     */
+    private Result fetchSource(final CacheMetadata validators) throws IOException {
+        return loader.getSourceFetcher().fetch(sourceKey, validators, sourceTicket, new SourceFetcher.Call() {
+            @Override
+            public Result call(CancellationSignal signal) throws IOException {
+                return requestHandler.handle(data, validators, signal);
+            }
+        });
+    }
+
+    private Stage pending(Result result) {
+        if (result == null) {
+            return null;
+        }
+        exifOrientation = result.getExifOrientation();
+        return pending(result.getStream(), result.getBitmap(), result.getLoadedFrom(), PENDING_REQUEST);
+    }
+
+    /**
+     * 保存等待解码的数据
+     */
+    private Stage pending(InputStream stream, Bitmap bitmap, LoadedFrom from, int source) {
+        pendingStream = stream;
+        pendingBitmap = bitmap;
+        pendingSource = source;
+        loadedFrom = from;
+        return Stage.DECODE;
+    }
+
+    /**
+     * 解码并处理Bitmap，缓存的数据已损坏时删除后回到之前的阶段重新获取
+     */
+    private Stage decode() throws IOException {
+        Bitmap bitmap = pendingBitmap;
+        InputStream is = pendingStream;
+        int source = pendingSource;
+        pendingBitmap = null;
+        pendingStream = null;
+
+        // 图片可能保存在InputStream而不是bitmap，比如NetworkRequestHandler
+        if (bitmap == null && is != null) {
+            try {
+                bitmap = decodeStream(CancellableInputStream.wrap(is, cancellation), data);
+            } catch (IOException e) {
+                // 被取消而中止的解码，缓存的数据并没有损坏
+                cancellation.throwIfCanceled();
+                if (source == PENDING_RESULT_CACHE) {
+                    // 处理结果已损坏，删除后继续从原始数据加载
+                    diskCache.remove(key);
+                    skipResultCache = true;
+                    return Stage.DISK;
+                }
+                if (source == PENDING_SOURCE_CACHE) {
+                    // 原始数据已损坏，删除后重新下载
+                    sourceCache.remove(sourceKey);
+                    skipSourceCache = true;
+                    cached = null;
+                    if (staleError != null) {
+                        throw staleError;
+                    }
+                    return Stage.NETWORK;
+                }
+                throw e;
+            } finally {
+                CloseUtils.close(is);
+            }
+        }
+
+        // 缓存的处理结果已经变换过，再次变换会重复旋转、裁剪
+        if (bitmap != null && source != PENDING_RESULT_CACHE) {
             if (data.needsTransformation() || exifOrientation != 0) {
                 synchronized (DECODE_LOCK) {
                     if (data.needsMatrixTransform() || exifOrientation != 0) {
-                        bitmap = transformResult(data, bitmap, exifOrientation);
+                        bitmap = transformResult(data, bitmap, exifOrientation, loader.getBitmapPool());
                     }
                     if (data.hasCustomTransformations()) {
                         bitmap = applyCustomTransformations(data.transformations, bitmap);
@@ -268,7 +677,8 @@ public class BitmapHunter implements Runnable {
             }
         }
 
-        return bitmap;
+        decoded = bitmap;
+        return null;
     }
 
     private static Bitmap applyCustomTransformations(List<Transformation> transformations, Bitmap result) {
@@ -331,7 +741,7 @@ public class BitmapHunter implements Runnable {
         return result;
     }
 
-    private static Bitmap transformResult(Request data, Bitmap result, int exifOrientation) {
+    private static Bitmap transformResult(Request data, Bitmap result, int exifOrientation, BitmapPool pool) {
         int inWidth = result.getWidth();
         int inHeight = result.getHeight();
         boolean onlyScaleDown = data.onlyScaleDown;
@@ -457,7 +867,10 @@ public class BitmapHunter implements Runnable {
 
         Bitmap newResult = Bitmap.createBitmap(result, drawX, drawY, drawWidth, drawHeight, matrix, true);
         if (newResult != result) {
-            result.recycle();
+            // 原始Bitmap没有被其他地方引用，优先放回缓存池
+            if (pool == null || !pool.put(result)) {
+                result.recycle();
+            }
             result = newResult;
         }
 
@@ -510,6 +923,7 @@ public class BitmapHunter implements Runnable {
     void attach(Action action) {
         if (this.action == null) {
             this.action = action;
+            updateAttached();
             return;
         }
 
@@ -518,6 +932,7 @@ public class BitmapHunter implements Runnable {
         }
 
         actions.add(action);
+        updateAttached();
 
         //若新attach的请求优先级比较高，则提高优先级
         Priority actionPriority = action.getPriority();
@@ -539,6 +954,9 @@ public class BitmapHunter implements Runnable {
         } else if (actions != null) {
             detached = actions.remove(action);
         }
+        if (detached) {
+            updateAttached();
+        }
 
         //重新计算优先级
         if (detached/* && action.getPriority() == priority*/) {
@@ -546,6 +964,53 @@ public class BitmapHunter implements Runnable {
         }
     }
 
+    private void updateAttached() {
+        List<Action> all = new ArrayList<>(actions == null ? 1 : actions.size() + 1);
+        if (action != null) {
+            all.add(action);
+        }
+        if (actions != null) {
+            all.addAll(actions);
+        }
+        attached = all.toArray(new Action[all.size()]);
+    }
+
+    /**
+     * @return 所有请求都已取消或者target已被回收，结果已经没有请求需要
+     */
+    boolean isStale() {
+        for (Action action : attached) {
+            if (!action.isStale()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 排队时被线程池丢弃，交给Dispatcher线程通知失败。可能在持有其他hunter的锁的线程中调用，这里不能加锁
+     */
+    void dispatchShed() {
+        dispatcher.dispatchShed(this);
+    }
+
+    /**
+     * 在Dispatcher线程中调用，释放排队时持有的资源，不会再继续加载
+     *
+     * @return 是否需要通知请求失败，已经被取消时返回false
+     */
+    boolean shed() {
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            abandon();
+        }
+        sourceTicket.release();
+        exception = new RequestShedException("Request shed from a full queue: " + key);
+        return true;
+    }
+
     /**
      * 重新计算优先级，遍历action以及attach到这个Hunter的action，以最高优先级为最新优先级
      */
@@ -581,11 +1046,27 @@ public class BitmapHunter implements Runnable {
      * @return future是否取消成功
      */
     boolean cancel() {
-        return action == null && (actions == null || actions.isEmpty()) && future != null && future.cancel(false);
+        synchronized (this) {
+            if (action != null || (actions != null && !actions.isEmpty()) || future == null) {
+                return false;
+            }
+            if (!future.cancel(false) && !waiting) {
+                return false;
+            }
+            cancelled = true;
+            if (!running) {
+                // 在阶段之间排队时被取消，不会再执行，在这里释放；正在执行时由执行的线程在阶段结束时释放
+                abandon();
+            }
+        }
+        // 中止正在进行的解码，释放对正在进行的下载的引用，没有其他请求等待时中止下载
+        cancellation.cancel();
+        sourceTicket.release();
+        return true;
     }
 
-    boolean isCancelled() {
-        return future != null && future.isCancelled();
+    synchronized boolean isCancelled() {
+        return cancelled;
     }
 
     /**
@@ -607,8 +1088,22 @@ public class BitmapHunter implements Runnable {
         return requestHandler.supportsReplay();
     }
 
-    void setFuture(Future<?> future) {
-        this.future = future;
+    Future<?> getFuture() {
+        return future;
+    }
+
+    /**
+     * 某个action的优先级被修改后重新计算
+     *
+     * @return 优先级是否变化
+     */
+    boolean updatePriority() {
+        Priority newPriority = computeNewPriority();
+        if (newPriority == priority) {
+            return false;
+        }
+        priority = newPriority;
+        return true;
     }
 
     Bitmap getResult() {
@@ -627,6 +1122,37 @@ public class BitmapHunter implements Runnable {
         return diskPolicy;
     }
 
+    /**
+     * @return 这个请求使用的处理结果磁盘缓存，磁盘缓存分区时是选中的分区
+     */
+    CacheManager<String, InputStream> getDiskCache() {
+        return diskCache;
+    }
+
+    private static CacheMetadata getMetadata(CacheManager<String, ?> cache, String key) {
+        if (cache instanceof MetadataCacheManager) {
+            return ((MetadataCacheManager<String, ?>) cache).getMetadata(key);
+        }
+        return null;
+    }
+
+    private static void updateMetadata(CacheManager<String, ?> cache, String key, CacheMetadata metadata) {
+        if (cache instanceof MetadataCacheManager) {
+            ((MetadataCacheManager<String, ?>) cache).updateMetadata(key, metadata);
+        }
+    }
+
+    /**
+     * 磁盘缓存分区时，按请求指定的分区或目标尺寸选择分区
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> CacheManager<String, V> selectPartition(CacheManager<String, V> cache, Request data) {
+        if (cache instanceof PartitionedDiskCache) {
+            return ((PartitionedDiskCache<V>) cache).getPartition(data.diskPartition, data.targetWidth, data.targetHeight);
+        }
+        return cache;
+    }
+
     Request getData() {
         return data;
     }
@@ -647,6 +1173,10 @@ public class BitmapHunter implements Runnable {
         return exception;
     }
 
+    boolean isShared() {
+        return shared;
+    }
+
     LoadedFrom getLoadedFrom() {
         return loadedFrom;
     }
@@ -658,5 +1188,20 @@ public class BitmapHunter implements Runnable {
     int getSequence() {
         return sequence;
     }
+
+    void setPinned(boolean pinned) {
+        this.pinned = pinned;
+    }
+
+    boolean isPinned() {
+        return pinned;
+    }
+
+    /**
+     * @return 请求的tag，没有设置tag时返回{@link TagStats#UNTAGGED}
+     */
+    Object getTag() {
+        return tag;
+    }
 }
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import android.graphics.Bitmap;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import site.hanschen.easyloader.cache.BitmapPool;
+import site.hanschen.easyloader.cache.EvictionListener;
+
+/**
+ * 把内存缓存淘汰的Bitmap以及被取消请求的结果放回{@link BitmapPool}
+ *
+ * <p>已经交给调用者(显示在View上或者通过{@code get()}返回)的Bitmap仍可能被使用，
+ * 不能被复用，淘汰时直接丢弃。放入内存缓存后、交给调用者之前的Bitmap通过{@link #pin(Bitmap)}保护，
+ * 这期间被淘汰也不会放回缓存池</p>
+ */
+class BitmapRecycler implements EvictionListener<String, Bitmap> {
+
+    private final BitmapPool           pool;
+    private final DiskCacheWriter      writer;
+    private final Set<Bitmap>          exported = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>()));
+    /**
+     * 等待交付的Bitmap的引用计数
+     */
+    private final Map<Bitmap, Integer> pinned   = new IdentityHashMap<>();
+
+    BitmapRecycler(BitmapPool pool, DiskCacheWriter writer) {
+        this.pool = pool;
+        this.writer = writer;
+    }
+
+    BitmapPool getPool() {
+        return pool;
+    }
+
+    /**
+     * 标记Bitmap已经交给调用者
+     */
+    void markExported(Bitmap bitmap) {
+        if (bitmap != null) {
+            exported.add(bitmap);
+        }
+    }
+
+    /**
+     * 在放入内存缓存之前调用，交付之前被淘汰的Bitmap不会被复用，交付后调用{@link #unpin(Bitmap)}
+     */
+    void pin(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (pinned) {
+            Integer count = pinned.get(bitmap);
+            pinned.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * 交付完成或者请求被取消，交付期间被淘汰的Bitmap不再放回缓存池，由GC回收
+     */
+    void unpin(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (pinned) {
+            Integer count = pinned.get(bitmap);
+            if (count == null || count == 1) {
+                pinned.remove(bitmap);
+            } else {
+                pinned.put(bitmap, count - 1);
+            }
+        }
+    }
+
+    private boolean isPinned(Bitmap bitmap) {
+        synchronized (pinned) {
+            return pinned.containsKey(bitmap);
+        }
+    }
+
+    /**
+     * 尝试放回缓存池，还没有写入磁盘缓存的写入任务会被取消
+     *
+     * @return 是否已放入缓存池
+     */
+    boolean recycle(Bitmap bitmap) {
+        if (bitmap == null || exported.contains(bitmap) || isPinned(bitmap)) {
+            return false;
+        }
+        // 正在写入磁盘的Bitmap不能被复用
+        if (writer != null && !writer.discard(bitmap)) {
+            return false;
+        }
+        return pool.put(bitmap);
+    }
+
+    @Override
+    public void onEvicted(String key, Bitmap value) {
+        recycle(value);
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import site.hanschen.easyloader.bean.CacheMetadata;
+import site.hanschen.easyloader.cache.CacheManager;
+import site.hanschen.easyloader.cache.MetadataCacheManager;
+import site.hanschen.easyloader.log.EasyLoaderLog;
+import site.hanschen.easyloader.util.Utils;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+/**
+ * 在单独的线程中写磁盘缓存，避免编码以及文件IO阻塞Dispatcher线程和解码线程
+ *
+ * <p>写入队列有容量限制，按请求优先级写入，相同缓存的相同key只保留一个写入任务；
+ * 队列满时丢弃优先级最低的任务，而不是阻塞调用方</p>
+ */
+class DiskCacheWriter {
+
+    private static final String TAG                = "DiskCacheWriter";
+    private static final int    DEFAULT_QUEUE_SIZE = 32;
+    private static final int    BITMAP_QUALITY     = 90;
+
+    private final PriorityQueue<WriteTask> queue   = new PriorityQueue<>();
+    private final Map<WriteKey, WriteTask> pending = new HashMap<>();
+    private final int                      maxQueueSize;
+    private final WriterThread             thread;
+    private       WriteTask                writing;
+    private       int                      sequence;
+    private       long                     writtenCount;
+    private       long                     droppedCount;
+    private       long                     discardedCount;
+    private       boolean                  shutdown;
+
+    DiskCacheWriter() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    DiskCacheWriter(int maxQueueSize) {
+        if (maxQueueSize <= 0) {
+            throw new IllegalArgumentException("maxQueueSize <= 0");
+        }
+        this.maxQueueSize = maxQueueSize;
+        this.thread = new WriterThread();
+        this.thread.start();
+    }
+
+    /**
+     * 提交写入任务，不会阻塞
+     *
+     * @return 任务是否被接收，相同的任务已经在队列中时也返回true
+     */
+    synchronized <V> boolean enqueue(CacheManager<String, V> cache, String key, V value, Priority priority) {
+        return enqueue(cache, key, value, null, priority);
+    }
+
+    /**
+     * 提交写入任务，{@code cache}支持元数据时同时写入{@code metadata}并替换已有的条目
+     *
+     * @param metadata 可以为null
+     * @return 任务是否被接收，相同的任务已经在队列中时也返回true
+     */
+    synchronized <V> boolean enqueue(CacheManager<String, V> cache, String key, V value, CacheMetadata metadata, Priority priority) {
+        return enqueue(new PutTask<>(new WriteKey(cache, key), cache, value, metadata, priority, sequence++));
+    }
+
+    /**
+     * 提交Bitmap的写入任务，编码在写入线程中进行，不会阻塞
+     *
+     * @return 任务是否被接收，相同的任务已经在队列中时也返回true
+     */
+    synchronized boolean enqueueBitmap(CacheManager<String, InputStream> cache, String key, Bitmap bitmap, Priority priority) {
+        return enqueue(new EncodeTask(new WriteKey(cache, key), cache, bitmap, priority, sequence++));
+    }
+
+    private boolean enqueue(WriteTask task) {
+        CacheManager<?, ?> cache = task.writeKey.cache;
+        String key = task.writeKey.key;
+        Priority priority = task.priority;
+        if (shutdown || cache == null) {
+            return false;
+        }
+        WriteKey writeKey = task.writeKey;
+        if (pending.containsKey(writeKey) || (writing != null && writing.writeKey.equals(writeKey))) {
+            return true;
+        }
+
+        if (queue.size() >= maxQueueSize) {
+            WriteTask lowest = findLowest();
+            if (lowest.priority.ordinal() >= priority.ordinal()) {
+                droppedCount++;
+                EasyLoaderLog.d(TAG, "queue is full, drop write: " + key);
+                return false;
+            }
+            queue.remove(lowest);
+            pending.remove(lowest.writeKey);
+            droppedCount++;
+            EasyLoaderLog.d(TAG, "queue is full, drop write: " + lowest.writeKey.key);
+        }
+
+        queue.offer(task);
+        pending.put(writeKey, task);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 取消写入value的任务，在value被缓存淘汰准备复用之前调用
+     *
+     * @return value是否可以被复用，若value正在被写入，返回false
+     */
+    synchronized boolean discard(Object value) {
+        if (!pending.isEmpty()) {
+            for (WriteTask task : pending.values().toArray(new WriteTask[pending.size()])) {
+                if (task.value == value) {
+                    queue.remove(task);
+                    pending.remove(task.writeKey);
+                    discardedCount++;
+                }
+            }
+        }
+        return writing == null || writing.value != value;
+    }
+
+    synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    synchronized long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return 因为队列已满而丢弃的任务数
+     */
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return 因为值已被淘汰而取消的任务数
+     */
+    synchronized long getDiscardedCount() {
+        return discardedCount;
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        queue.clear();
+        pending.clear();
+        notifyAll();
+    }
+
+    private WriteTask findLowest() {
+        WriteTask lowest = null;
+        for (WriteTask task : queue) {
+            if (lowest == null || task.compareTo(lowest) > 0) {
+                lowest = task;
+            }
+        }
+        return lowest;
+    }
+
+    private synchronized WriteTask take() throws InterruptedException {
+        writing = null;
+        while (queue.isEmpty() && !shutdown) {
+            wait();
+        }
+        if (shutdown) {
+            return null;
+        }
+        writing = queue.poll();
+        pending.remove(writing.writeKey);
+        return writing;
+    }
+
+    private synchronized void onWritten() {
+        writtenCount++;
+    }
+
+    private class WriterThread extends Thread {
+
+        WriterThread() {
+            setDaemon(true);
+            setName(Utils.THREAD_PREFIX + "DiskWriter");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                WriteTask task;
+                try {
+                    task = take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.write();
+                    onWritten();
+                } catch (RuntimeException e) {
+                    EasyLoaderLog.w(TAG, "Unable to write " + task.writeKey.key + ": " + e);
+                }
+            }
+        }
+    }
+
+    private static final class WriteKey {
+        final CacheManager<?, ?> cache;
+        final String             key;
+
+        WriteKey(CacheManager<?, ?> cache, String key) {
+            this.cache = cache;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WriteKey)) {
+                return false;
+            }
+            WriteKey other = (WriteKey) o;
+            return cache == other.cache && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(cache) + key.hashCode();
+        }
+    }
+
+    private abstract static class WriteTask implements Comparable<WriteTask> {
+        final WriteKey writeKey;
+        final Object   value;
+        final Priority priority;
+        final int      sequence;
+
+        WriteTask(WriteKey writeKey, Object value, Priority priority, int sequence) {
+            this.writeKey = writeKey;
+            this.value = value;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        abstract void write();
+
+        /**
+         * 优先级高的先写入，优先级相同时按提交顺序
+         */
+        @Override
+        public int compareTo(WriteTask another) {
+            if (priority != another.priority) {
+                return another.priority.ordinal() - priority.ordinal();
+            }
+            return sequence - another.sequence;
+        }
+    }
+
+    private static final class PutTask<V> extends WriteTask {
+        final CacheManager<String, V> cache;
+        final V                       data;
+        final CacheMetadata           metadata;
+
+        PutTask(WriteKey writeKey, CacheManager<String, V> cache, V data, CacheMetadata metadata, Priority priority, int sequence) {
+            super(writeKey, data, priority, sequence);
+            this.cache = cache;
+            this.data = data;
+            this.metadata = metadata;
+        }
+
+        @Override
+        void write() {
+            if (metadata != null && cache instanceof MetadataCacheManager) {
+                ((MetadataCacheManager<String, V>) cache).put(writeKey.key, data, metadata);
+            } else {
+                cache.put(writeKey.key, data);
+            }
+        }
+    }
+
+    /**
+     * 把Bitmap编码后写入，WebP体积最小，但API 18以前的WebP不支持透明度，带透明度的图片使用PNG
+     */
+    private static final class EncodeTask extends WriteTask {
+        final CacheManager<String, InputStream> cache;
+        final Bitmap                            bitmap;
+
+        EncodeTask(WriteKey writeKey, CacheManager<String, InputStream> cache, Bitmap bitmap, Priority priority, int sequence) {
+            super(writeKey, bitmap, priority, sequence);
+            this.cache = cache;
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        void write() {
+            Bitmap.CompressFormat format = bitmap.hasAlpha() && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2
+                                           ? Bitmap.CompressFormat.PNG
+                                           : Bitmap.CompressFormat.WEBP;
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            if (bitmap.compress(format, BITMAP_QUALITY, os)) {
+                cache.put(writeKey.key, new ByteArrayInputStream(os.toByteArray()));
+            }
+        }
+    }
+}
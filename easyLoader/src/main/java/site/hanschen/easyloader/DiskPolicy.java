@@ -29,7 +29,13 @@ public enum DiskPolicy {
     /**
      * 不把请求结果缓存到本地
      */
-    NO_STORE(1 << 1);
+    NO_STORE(1 << 1),
+
+    /**
+     * 除了原始数据，把经过缩放、裁剪以及Transformation处理后的结果也缓存到本地，
+     * 适用于处理耗时较长的请求，默认只缓存原始数据
+     */
+    CACHE_RESULT(1 << 2);
 
     public static boolean shouldReadFromDiskCache(int diskPolicy) {
         return (diskPolicy & DiskPolicy.NO_CACHE.index) == 0;
@@ -39,6 +45,14 @@ public enum DiskPolicy {
         return (diskPolicy & DiskPolicy.NO_STORE.index) == 0;
     }
 
+    public static boolean shouldReadResultFromDiskCache(int diskPolicy) {
+        return shouldReadFromDiskCache(diskPolicy) && (diskPolicy & DiskPolicy.CACHE_RESULT.index) != 0;
+    }
+
+    public static boolean shouldWriteResultToDiskCache(int diskPolicy) {
+        return shouldWriteToDiskCache(diskPolicy) && (diskPolicy & DiskPolicy.CACHE_RESULT.index) != 0;
+    }
+
     public final int index;
 
     DiskPolicy(int index) {
@@ -28,32 +28,39 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import site.hanschen.easyloader.action.Action;
 import site.hanschen.easyloader.cache.CacheManager;
+import site.hanschen.easyloader.util.MpscQueue;
 import site.hanschen.easyloader.util.Utils;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static android.content.Intent.ACTION_AIRPLANE_MODE_CHANGED;
 import static android.net.ConnectivityManager.CONNECTIVITY_ACTION;
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
-import static site.hanschen.easyloader.DiskPolicy.shouldWriteToDiskCache;
+import static site.hanschen.easyloader.DiskPolicy.shouldWriteResultToDiskCache;
 import static site.hanschen.easyloader.MemoryPolicy.shouldWriteToMemoryCache;
 import static site.hanschen.easyloader.util.Utils.getService;
 
 public class Dispatcher {
 
-    private static final int RETRY_DELAY       = 500;
-    private static final int AIRPLANE_MODE_ON  = 1;
-    private static final int AIRPLANE_MODE_OFF = 0;
+    private static final int RETRY_DELAY        = 500;
+    /**
+     * 每次最多处理的命令数，超过时重新发送消息，避免长时间占用Dispatcher线程
+     */
+    private static final int COMMAND_BATCH_SIZE = 256;
+    private static final int DISK_THREAD_COUNT  = 2;
 
     static final int REQUEST_SUBMIT          = 1;
     static final int REQUEST_CANCEL          = 2;
@@ -68,50 +75,81 @@ public class Dispatcher {
     static final int TAG_PAUSE               = 11;
     static final int TAG_RESUME              = 12;
     static final int REQUEST_BATCH_RESUME    = 13;
+    static final int COMMAND_DRAIN           = 14;
+    static final int PRIORITY_CHANGE         = 15;
+    static final int HUNTER_SHED             = 16;
 
     private static final String DISPATCHER_THREAD_NAME = "Dispatcher";
-    private static final int    BATCH_DELAY            = 200; // ms
 
-    private final DispatcherThread             dispatcherThread;
-    private final Context                      context;
-    private final AdjustableExecutorService    service;
+    private final DispatcherThread                  dispatcherThread;
+    private final Context                           context;
+    /**
+     * 下载网络数据的线程池，线程数随网络类型调整
+     */
+    private final AdjustableExecutorService         service;
+    private final AdjustableExecutorService         diskService;
+    private final AdjustableExecutorService         decodeService;
+    private final AdaptiveConcurrency               concurrency;
     /**
      * 已加入请求列表的任务，任务取消、完成或者失败后会移除
      */
-    private final Map<String, BitmapHunter>    hunterMap;
+    private final Map<String, BitmapHunter>         hunterMap;
     /**
      * 需重新进行请求任务列表，在重新联网的时候，会把当前列表的任务重新进行请求
      */
-    private final Map<Object, Action>          failedActions;
+    private final Map<Object, Action>               failedActions;
     /**
      * 暂停请求的任务列表
      */
-    private final Map<Object, Action>          pausedActions;
+    private final Map<Object, Action>               pausedActions;
     /**
      * 已缓存暂未处理的结果
      */
-    private final List<BitmapHunter>           batch;
-    private final Set<Object>                  pausedTags;
-    private final Handler                      dispatcherHandler;
-    private final Handler                      mainThreadHandler;
-    private final CacheManager<String, Bitmap> memoryCache;
-    private final CacheManager<String, Bitmap> diskCache;
-    private final NetworkBroadcastReceiver     receiver;
-    private final boolean                      canScansNetworkChanges;
-    private       boolean                      airplaneMode;
+    private final List<BitmapHunter>                batch;
+    private final Set<Object>                       pausedTags;
+    private final Handler                           dispatcherHandler;
+    /**
+     * 其他线程提交给Dispatcher线程的命令，由{@link #performDrain()}批量处理
+     */
+    private final MpscQueue<Command>                commands;
+    private final AtomicBoolean                     drainScheduled;
+    private final List<Command>                     drained;
+    private final Map<Action, Integer>              drainedSubmits;
+    private final Handler                           mainThreadHandler;
+    private final CacheManager<String, Bitmap>      memoryCache;
+    private final CacheManager<String, InputStream> diskCache;
+    private final BitmapRecycler                    recycler;
+    private final DiskCacheWriter                   diskCacheWriter;
+    private final NetworkBroadcastReceiver          receiver;
+    private final boolean                           canScansNetworkChanges;
+    private       boolean                           airplaneMode;
 
     Dispatcher(Context context,
                AdjustableExecutorService service,
+               AdaptiveConcurrency concurrency,
                Handler mainThreadHandler,
                CacheManager<String, Bitmap> memoryCache,
-               CacheManager<String, Bitmap> diskCache) {
+               CacheManager<String, InputStream> diskCache,
+               BitmapRecycler recycler,
+               DiskCacheWriter diskCacheWriter) {
         this.dispatcherThread = new DispatcherThread();
         this.dispatcherThread.start();
         Utils.flushStackLocalLeaks(dispatcherThread.getLooper());
         this.dispatcherHandler = new DispatcherHandler(dispatcherThread.getLooper(), this);
+        this.commands = new MpscQueue<>();
+        this.drainScheduled = new AtomicBoolean();
+        this.drained = new ArrayList<>();
+        this.drainedSubmits = new IdentityHashMap<>();
 
         this.context = context;
         this.service = service;
+        this.concurrency = concurrency;
+        this.diskService = new AdjustableExecutorService(DISK_THREAD_COUNT,
+                                                         service.getTagScheduler(),
+                                                         service.getQueueCapacity());
+        this.decodeService = new AdjustableExecutorService(Math.max(1, Runtime.getRuntime().availableProcessors()),
+                                                           service.getTagScheduler(),
+                                                           service.getQueueCapacity());
         this.hunterMap = new LinkedHashMap<>();
         this.failedActions = new WeakHashMap<>();
         this.pausedActions = new WeakHashMap<>();
@@ -119,6 +157,8 @@ public class Dispatcher {
         this.mainThreadHandler = mainThreadHandler;
         this.memoryCache = memoryCache;
         this.diskCache = diskCache;
+        this.recycler = recycler;
+        this.diskCacheWriter = diskCacheWriter;
         this.batch = new ArrayList<>(4);
         this.airplaneMode = Utils.isAirplaneModeOn(this.context);
         this.canScansNetworkChanges = Utils.hasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE);
@@ -128,6 +168,8 @@ public class Dispatcher {
 
     void shutdown() {
         service.shutdown();
+        diskService.shutdown();
+        decodeService.shutdown();
         dispatcherThread.quit();
         EasyLoader.HANDLER.post(new Runnable() {
             @Override
@@ -137,26 +179,86 @@ public class Dispatcher {
         });
     }
 
+    /**
+     * 把hunter交给阶段对应的线程池，可以在任意线程调用
+     *
+     * @return 是否已提交，hunter已经被取消或者线程池已关闭时返回false
+     */
+    boolean submitStage(BitmapHunter hunter, BitmapHunter.Stage stage) {
+        switch (stage) {
+            case DISK:
+                return hunter.submit(stage, diskService);
+            case NETWORK:
+                return hunter.submit(stage, service);
+            default:
+                return hunter.submit(stage, decodeService);
+        }
+    }
+
+    /**
+     * @return 所有阶段合计的排队任务数和丢弃的任务数
+     */
+    QueueStats queueStats() {
+        return service.queueStats().plus(diskService.queueStats()).plus(decodeService.queueStats());
+    }
+
+    /**
+     * @return 所有阶段合计的每个tag排队和执行中的任务数
+     */
+    Map<Object, TagStats> tagStats() {
+        Map<Object, TagStats> stats = service.tagStats();
+        mergeTagStats(stats, diskService.tagStats());
+        mergeTagStats(stats, decodeService.tagStats());
+        return stats;
+    }
+
+    private static void mergeTagStats(Map<Object, TagStats> to, Map<Object, TagStats> from) {
+        for (Map.Entry<Object, TagStats> entry : from.entrySet()) {
+            TagStats stats = to.get(entry.getKey());
+            to.put(entry.getKey(), stats == null ? entry.getValue() : stats.plus(entry.getValue()));
+        }
+    }
+
+    /**
+     * 内存紧张时暂停所有阶段的低优先级任务
+     */
+    void pauseLowPriority() {
+        service.pauseLowPriority();
+        diskService.pauseLowPriority();
+        decodeService.pauseLowPriority();
+    }
+
     /**
      * 提交Action
      */
     void dispatchSubmit(Action action) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(REQUEST_SUBMIT, action));
+        enqueue(REQUEST_SUBMIT, action);
     }
 
     /**
      * 取消Action
      */
     void dispatchCancel(Action action) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(REQUEST_CANCEL, action));
+        enqueue(REQUEST_CANCEL, action);
+    }
+
+    /**
+     * Action的优先级被修改
+     */
+    void dispatchPriorityChange(Action action) {
+        enqueue(PRIORITY_CHANGE, action);
+    }
+
+    void dispatchShed(BitmapHunter hunter) {
+        enqueue(HUNTER_SHED, hunter);
     }
 
     void dispatchPauseTag(Object tag) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(TAG_PAUSE, tag));
+        enqueue(TAG_PAUSE, tag);
     }
 
     void dispatchResumeTag(Object tag) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(TAG_RESUME, tag));
+        enqueue(TAG_RESUME, tag);
     }
 
     /**
@@ -165,7 +267,7 @@ public class Dispatcher {
      * @param hunter 包含result结果的hunter
      */
     void dispatchSuccess(BitmapHunter hunter) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(HUNTER_SUCCESS, hunter));
+        enqueue(HUNTER_SUCCESS, hunter);
     }
 
     /**
@@ -179,23 +281,107 @@ public class Dispatcher {
      * 请求失败
      */
     void dispatchFailed(BitmapHunter hunter) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(HUNTER_DECODE_FAILED, hunter));
+        enqueue(HUNTER_DECODE_FAILED, hunter);
     }
 
     /**
      * 网络状态变化
      */
     private void dispatchNetworkStateChange(NetworkInfo info) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(NETWORK_STATE_CHANGE, info));
+        enqueue(NETWORK_STATE_CHANGE, info);
     }
 
     /**
      * 飞行模式状态变化
      */
     private void dispatchAirplaneModeChange(boolean airplaneMode) {
-        dispatcherHandler.sendMessage(dispatcherHandler.obtainMessage(AIRPLANE_MODE_CHANGE,
-                                                                      airplaneMode ? AIRPLANE_MODE_ON : AIRPLANE_MODE_OFF,
-                                                                      0));
+        enqueue(AIRPLANE_MODE_CHANGE, airplaneMode);
+    }
+
+    /**
+     * 放入命令队列，队列从空变为非空时才发送一次消息唤醒Dispatcher线程
+     */
+    private void enqueue(int what, Object obj) {
+        commands.offer(new Command(what, obj));
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled.getAndSet(true)) {
+            dispatcherHandler.sendEmptyMessage(COMMAND_DRAIN);
+        }
+    }
+
+    /**
+     * 批量处理命令队列，同一批中先提交后取消的Action直接抵消，不会创建BitmapHunter
+     */
+    private void performDrain() {
+        // 先清除标记再读取，之后入队的命令会重新发送消息
+        drainScheduled.set(false);
+        Command command;
+        while (drained.size() < COMMAND_BATCH_SIZE && (command = commands.poll()) != null) {
+            if (command.what == REQUEST_SUBMIT) {
+                drainedSubmits.put((Action) command.obj, drained.size());
+            } else if (command.what == REQUEST_CANCEL) {
+                Integer submit = drainedSubmits.remove(command.obj);
+                if (submit != null) {
+                    drained.set(submit, null);
+                }
+            }
+            drained.add(command);
+        }
+        boolean more = drained.size() == COMMAND_BATCH_SIZE;
+        try {
+            for (int i = 0, n = drained.size(); i < n; i++) {
+                command = drained.get(i);
+                if (command != null) {
+                    performCommand(command.what, command.obj);
+                }
+            }
+        } finally {
+            drained.clear();
+            drainedSubmits.clear();
+        }
+        if (more) {
+            scheduleDrain();
+        }
+    }
+
+    private void performCommand(int what, Object obj) {
+        switch (what) {
+            case REQUEST_SUBMIT:
+                performSubmit((Action) obj);
+                break;
+            case REQUEST_CANCEL:
+                performCancel((Action) obj);
+                break;
+            case PRIORITY_CHANGE:
+                performPriorityChange((Action) obj);
+                break;
+            case HUNTER_SHED:
+                performShed((BitmapHunter) obj);
+                break;
+            case TAG_PAUSE:
+                performPauseTag(obj);
+                break;
+            case TAG_RESUME:
+                performResumeTag(obj);
+                break;
+            case HUNTER_SUCCESS:
+                performSuccess((BitmapHunter) obj);
+                break;
+            case HUNTER_DECODE_FAILED:
+                performError((BitmapHunter) obj, false);
+                break;
+            case NETWORK_STATE_CHANGE:
+                performNetworkStateChange((NetworkInfo) obj);
+                break;
+            case AIRPLANE_MODE_CHANGE:
+                performAirplaneModeChange((Boolean) obj);
+                break;
+            default:
+                throw new AssertionError("Unknown dispatcher command: " + what);
+        }
     }
 
     /**
@@ -220,7 +406,11 @@ public class Dispatcher {
         //请求相同，直接attach到已有的hunter中
         BitmapHunter hunter = hunterMap.get(action.getKey());
         if (hunter != null) {
+            Priority previous = hunter.getPriority();
             hunter.attach(action);
+            if (hunter.getPriority() != previous) {
+                AdjustableExecutorService.reprioritize(hunter.getFuture());
+            }
             return;
         }
 
@@ -229,7 +419,7 @@ public class Dispatcher {
         }
 
         hunter = BitmapHunter.forRequest(action.getLoader(), this, memoryCache, diskCache, action);
-        hunter.setFuture(service.submit(hunter));
+        submitStage(hunter, BitmapHunter.Stage.DISK);
         hunterMap.put(action.getKey(), hunter);
         //其实只要执行了performSubmit，就需要从failedActions移除，但是有些调用的地方，会在方法调用之外通过迭代器移除，不需要在这里移除
         if (dismissFailed) {
@@ -244,9 +434,12 @@ public class Dispatcher {
         String key = action.getKey();
         BitmapHunter hunter = hunterMap.get(key);
         if (hunter != null) {
+            Priority previous = hunter.getPriority();
             hunter.detach(action);
             if (hunter.cancel()) {
                 hunterMap.remove(key);
+            } else if (hunter.getPriority() != previous) {
+                AdjustableExecutorService.reprioritize(hunter.getFuture());
             }
         }
 
@@ -257,6 +450,16 @@ public class Dispatcher {
         failedActions.remove(action.getTarget());
     }
 
+    /**
+     * 重新计算hunter的优先级，还在排队的hunter按新的优先级重新排队
+     */
+    private void performPriorityChange(Action action) {
+        BitmapHunter hunter = hunterMap.get(action.getKey());
+        if (hunter != null && hunter.updatePriority()) {
+            AdjustableExecutorService.reprioritize(hunter.getFuture());
+        }
+    }
+
     private void performPauseTag(Object tag) {
         // Trying to pause a tag that is already paused.
         if (!pausedTags.add(tag)) {
@@ -326,6 +529,16 @@ public class Dispatcher {
     }
 
 
+    /**
+     * 排队的hunter被线程池丢弃，通知所有请求失败，之后的相同请求重新加载
+     */
+    private void performShed(BitmapHunter hunter) {
+        if (hunterMap.get(hunter.getKey()) != hunter || !hunter.shed()) {
+            return;
+        }
+        performError(hunter, false);
+    }
+
     /**
      * 执行重新尝试
      */
@@ -359,7 +572,7 @@ public class Dispatcher {
         }
 
         if (!canScansNetworkChanges || hasConnectivity) {
-            hunter.setFuture(service.submit(hunter));
+            submitStage(hunter, BitmapHunter.Stage.DISK);
             return;
         }
 
@@ -373,11 +586,25 @@ public class Dispatcher {
      * 执行成功后的处理，写入cache，加入批处理结果
      */
     private void performSuccess(BitmapHunter hunter) {
-        if (shouldWriteToMemoryCache(hunter.getMemoryPolicy())) {
+        boolean cached = shouldWriteToMemoryCache(hunter.getMemoryPolicy());
+        // 从内存中取得的结果可能正在显示，已由ActiveResources管理，不能再放入内存缓存
+        if (cached && hunter.getLoadedFrom() != LoadedFrom.MEMORY) {
+            if (!hunter.isCancelled()) {
+                // 交付之前可能被淘汰，在主线程交付后释放
+                recycler.pin(hunter.getResult());
+                hunter.setPinned(true);
+            }
             memoryCache.put(hunter.getKey(), hunter.getResult());
         }
-        if (shouldWriteToDiskCache(hunter.getDiskPolicy())) {
-            diskCache.put(hunter.getKey(), hunter.getResult());
+        // 原始数据在BitmapHunter中已经缓存，这里只缓存需要缓存处理结果的请求，交给DiskCacheWriter异步写入
+        boolean writing = false;
+        CacheManager<String, InputStream> resultCache = hunter.getDiskCache();
+        if (resultCache != null && shouldWriteResultToDiskCache(hunter.getDiskPolicy()) && hunter.getLoadedFrom() != LoadedFrom.MEMORY) {
+            writing = diskCacheWriter.enqueueBitmap(resultCache, hunter.getKey(), hunter.getResult(), hunter.getPriority());
+        }
+        // 请求已经被取消，结果不会交给任何人，也没有放入内存缓存，直接放回缓存池
+        if (hunter.isCancelled() && !cached && !writing && !hunter.isShared() && hunter.getLoadedFrom() != LoadedFrom.MEMORY) {
+            recycler.recycle(hunter.getResult());
         }
         hunterMap.remove(hunter.getKey());
         batch(hunter);
@@ -410,10 +637,10 @@ public class Dispatcher {
     }
 
     /**
-     * 网络状态变化,调整线程池大小
+     * 网络状态变化，之前测量的下载速度不再有效，重新调整下载线程数
      */
     private void performNetworkStateChange(NetworkInfo info) {
-        service.adjustThreadCount(info);
+        concurrency.reset();
         if (info != null && info.isConnected()) {
             flushFailedActions();
         }
@@ -462,7 +689,8 @@ public class Dispatcher {
     }
 
     /**
-     * 将待处理(成功或失败)的hunter放入列表中，缓存200ms后统一处理
+     * 将待处理(成功或失败)的hunter放入列表中，当前的命令处理完后一起交给主线程，
+     * 由{@link FrameDeliveryScheduler}在下一帧开始时交付，不再固定等待
      */
     private void batch(BitmapHunter hunter) {
         if (hunter.isCancelled()) {
@@ -470,7 +698,7 @@ public class Dispatcher {
         }
         batch.add(hunter);
         if (!dispatcherHandler.hasMessages(HUNTER_DELAY_NEXT_BATCH)) {
-            dispatcherHandler.sendEmptyMessageDelayed(HUNTER_DELAY_NEXT_BATCH, BATCH_DELAY);
+            dispatcherHandler.sendEmptyMessage(HUNTER_DELAY_NEXT_BATCH);
         }
     }
 
@@ -486,29 +714,8 @@ public class Dispatcher {
         @Override
         public void handleMessage(final Message msg) {
             switch (msg.what) {
-                case REQUEST_SUBMIT: {
-                    Action action = (Action) msg.obj;
-                    dispatcher.performSubmit(action);
-                    break;
-                }
-                case REQUEST_CANCEL: {
-                    Action action = (Action) msg.obj;
-                    dispatcher.performCancel(action);
-                    break;
-                }
-                case TAG_PAUSE: {
-                    Object tag = msg.obj;
-                    dispatcher.performPauseTag(tag);
-                    break;
-                }
-                case TAG_RESUME: {
-                    Object tag = msg.obj;
-                    dispatcher.performResumeTag(tag);
-                    break;
-                }
-                case HUNTER_SUCCESS: {
-                    BitmapHunter hunter = (BitmapHunter) msg.obj;
-                    dispatcher.performSuccess(hunter);
+                case COMMAND_DRAIN: {
+                    dispatcher.performDrain();
                     break;
                 }
                 case HUNTER_RETRY: {
@@ -516,24 +723,10 @@ public class Dispatcher {
                     dispatcher.performRetry(hunter);
                     break;
                 }
-                case HUNTER_DECODE_FAILED: {
-                    BitmapHunter hunter = (BitmapHunter) msg.obj;
-                    dispatcher.performError(hunter, false);
-                    break;
-                }
                 case HUNTER_DELAY_NEXT_BATCH: {
                     dispatcher.performBatchComplete();
                     break;
                 }
-                case NETWORK_STATE_CHANGE: {
-                    NetworkInfo info = (NetworkInfo) msg.obj;
-                    dispatcher.performNetworkStateChange(info);
-                    break;
-                }
-                case AIRPLANE_MODE_CHANGE: {
-                    dispatcher.performAirplaneModeChange(msg.arg1 == AIRPLANE_MODE_ON);
-                    break;
-                }
                 default:
                     EasyLoader.HANDLER.post(new Runnable() {
                         @Override
@@ -545,6 +738,19 @@ public class Dispatcher {
         }
     }
 
+    /**
+     * 命令队列中的一条命令，what与Handler消息使用相同的常量
+     */
+    private static final class Command {
+        final int    what;
+        final Object obj;
+
+        Command(int what, Object obj) {
+            this.what = what;
+            this.obj = obj;
+        }
+    }
+
     private static class DispatcherThread extends HandlerThread {
         DispatcherThread() {
             super(Utils.THREAD_PREFIX + DISPATCHER_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
@@ -16,9 +16,10 @@
 package site.hanschen.easyloader;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
@@ -28,23 +29,37 @@ import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.widget.ImageView;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 
 import site.hanschen.easyloader.action.Action;
+import site.hanschen.easyloader.action.FetchAction;
+import site.hanschen.easyloader.action.ImageViewAction;
+import site.hanschen.easyloader.action.TargetAction;
+import site.hanschen.easyloader.cache.BitmapPool;
 import site.hanschen.easyloader.cache.CacheManager;
+import site.hanschen.easyloader.cache.LruBitmapPool;
 import site.hanschen.easyloader.cache.LruDiskCache;
-import site.hanschen.easyloader.cache.LruMemoryCache;
+import site.hanschen.easyloader.cache.MemoryCacheFactory;
+import site.hanschen.easyloader.cache.PartitionedDiskCache;
 import site.hanschen.easyloader.cache.SizeCalculator;
+import site.hanschen.easyloader.cache.stats.CacheStats;
 import site.hanschen.easyloader.callback.OnLoadListener;
+import site.hanschen.easyloader.downloader.DownloadStats;
 import site.hanschen.easyloader.downloader.Downloader;
 import site.hanschen.easyloader.downloader.OkHttp3Downloader;
 import site.hanschen.easyloader.log.EasyLoaderLog;
@@ -60,10 +75,13 @@ import site.hanschen.easyloader.request.RequestTransformer;
 import site.hanschen.easyloader.request.ResourceRequestHandler;
 import site.hanschen.easyloader.util.AppUtils;
 import site.hanschen.easyloader.util.BitmapUtils;
+import site.hanschen.easyloader.util.CloseUtils;
+import site.hanschen.easyloader.util.SingleFlight;
 import site.hanschen.easyloader.util.Utils;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static site.hanschen.easyloader.MemoryPolicy.shouldReadFromMemoryCache;
+import static site.hanschen.easyloader.MemoryPolicy.shouldWriteToMemoryCache;
 import static site.hanschen.easyloader.util.ThreadChecker.checkMain;
 
 public class EasyLoader implements Provider {
@@ -74,9 +92,17 @@ public class EasyLoader implements Provider {
     private final Context                                context;
     private final ReferenceQueue<Object>                 referenceQueue;
     private final Dispatcher                             dispatcher;
+    private final AdjustableExecutorService              service;
+    private final AdaptiveConcurrency                    concurrency;
     private final List<RequestHandler>                   requestHandlers;
     private final CacheManager<String, Bitmap>           memoryCache;
-    private final CacheManager<String, Bitmap>           diskCache;
+    private final CacheManager<String, InputStream>      diskCache;
+    private final CacheManager<String, InputStream>      sourceCache;
+    private final BitmapRecycler                         recycler;
+    private final DiskCacheWriter                        diskCacheWriter;
+    private final ActiveResources                        activeResources;
+    private final SingleFlight<String, Bitmap>           huntFlights;
+    private final SourceFetcher                          sourceFetcher;
     private final Bitmap.Config                          defaultBitmapConfig;
     private final RequestTransformer                     requestTransformer;
     private final OnLoadListener                         listener;
@@ -84,13 +110,18 @@ public class EasyLoader implements Provider {
     private final Map<Object, Action>                    targetToAction;
     private final Map<ImageView, DeferredRequestCreator> targetToDeferredRequestCreator;
     private final QueueProcessType                       queueProcessType;
+    private final ComponentCallbacks2                    componentCallbacks;
     private       boolean                                shutdown;
     private       boolean                                indicatorsEnabled;
 
     private EasyLoader(Context context,
                        AdjustableExecutorService service,
+                       AdaptiveConcurrency concurrency,
                        CacheManager<String, Bitmap> memoryCache,
-                       CacheManager<String, Bitmap> diskCache,
+                       CacheManager<String, InputStream> diskCache,
+                       CacheManager<String, InputStream> sourceCache,
+                       BitmapRecycler recycler,
+                       DiskCacheWriter diskCacheWriter,
                        OnLoadListener listener,
                        List<RequestHandler> extraRequestHandlers,
                        Bitmap.Config defaultBitmapConfig,
@@ -104,6 +135,9 @@ public class EasyLoader implements Provider {
         this.context = context.getApplicationContext();
         this.memoryCache = memoryCache;
         this.diskCache = diskCache;
+        this.sourceCache = sourceCache;
+        this.recycler = recycler;
+        this.diskCacheWriter = diskCacheWriter;
         this.listener = listener;
         this.defaultBitmapConfig = defaultBitmapConfig;
         this.requestTransformer = requestTransformer;
@@ -112,7 +146,7 @@ public class EasyLoader implements Provider {
 
         //初始化requestHandlers
         List<RequestHandler> allRequestHandlers = new ArrayList<>();
-        allRequestHandlers.add(new ResourceRequestHandler(context));
+        allRequestHandlers.add(new ResourceRequestHandler(context, recycler.getPool()));
         allRequestHandlers.add(new ContactsPhotoRequestHandler(context));
         allRequestHandlers.add(new MediaStoreRequestHandler(context));
         allRequestHandlers.add(new ContentStreamRequestHandler(context));
@@ -124,12 +158,33 @@ public class EasyLoader implements Provider {
         }
         requestHandlers = Collections.unmodifiableList(allRequestHandlers);
 
-        this.dispatcher = new Dispatcher(context, service, HANDLER, memoryCache, diskCache);
+        this.service = service;
+        this.concurrency = concurrency;
+        this.dispatcher = new Dispatcher(context, service, concurrency, HANDLER, memoryCache, diskCache, recycler, diskCacheWriter);
         this.targetToAction = new WeakHashMap<>();
         this.targetToDeferredRequestCreator = new WeakHashMap<>();
         this.referenceQueue = new ReferenceQueue<>();
-        this.cleanupThread = new CleanupThread(referenceQueue, HANDLER);
+        this.activeResources = new ActiveResources(memoryCache, referenceQueue);
+        this.huntFlights = new SingleFlight<>();
+        this.sourceFetcher = new SourceFetcher(concurrency);
+        this.cleanupThread = new CleanupThread(referenceQueue, activeResources, HANDLER);
         this.cleanupThread.start();
+        this.componentCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(TRIM_MEMORY_COMPLETE);
+            }
+        };
+        this.context.registerComponentCallbacks(componentCallbacks);
     }
 
     @VisibleForTesting
@@ -137,9 +192,13 @@ public class EasyLoader implements Provider {
         if (shutdown) {
             return;
         }
+        context.unregisterComponentCallbacks(componentCallbacks);
+        activeResources.clear();
         memoryCache.clear();
+        recycler.getPool().clear();
         cleanupThread.shutdown();
         dispatcher.shutdown();
+        diskCacheWriter.shutdown();
         for (DeferredRequestCreator deferredRequestCreator : targetToDeferredRequestCreator.values()) {
             deferredRequestCreator.cancel();
         }
@@ -147,16 +206,52 @@ public class EasyLoader implements Provider {
         shutdown = true;
     }
 
+    /**
+     * 根据系统内存状态释放部分缓存，正在显示的Bitmap不会被释放
+     *
+     * @param level {@link ComponentCallbacks2}中的TRIM_MEMORY_*
+     */
+    public void trimMemory(int level) {
+        float fraction = getTrimFraction(level);
+        EasyLoaderLog.d("EasyLoader", "trimMemory, level: " + level + ", keep: " + fraction);
+        if (fraction >= 1) {
+            return;
+        }
+        memoryCache.trimToFraction(fraction);
+        recycler.getPool().trimToFraction(fraction);
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            dispatcher.pauseLowPriority();
+        }
+    }
+
+    /**
+     * @return 需要保留的缓存比例
+     */
+    private static float getTrimFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // TRIM_MEMORY_BACKGROUND, TRIM_MEMORY_UI_HIDDEN
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1;
+    }
+
     static final Handler HANDLER = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case Dispatcher.HUNTER_BATCH_COMPLETE: {
                     @SuppressWarnings("unchecked") List<BitmapHunter> batch = (List<BitmapHunter>) msg.obj;
-                    for (int i = 0, n = batch.size(); i < n; i++) {
-                        BitmapHunter hunter = batch.get(i);
-                        hunter.getLoader().complete(hunter);
-                    }
+                    DELIVERY.deliver(batch);
                     break;
                 }
                 case Dispatcher.REQUEST_GCED: {
@@ -178,6 +273,11 @@ public class EasyLoader implements Provider {
         }
     };
 
+    /**
+     * 按显示帧交付完成的hunter，所有EasyLoader共用主线程每一帧的时间预算
+     */
+    private static final FrameDeliveryScheduler DELIVERY = new FrameDeliveryScheduler(HANDLER);
+
     /**
      * 取消target对应的请求
      *
@@ -190,6 +290,7 @@ public class EasyLoader implements Provider {
             action.cancel();
             dispatcher.dispatchCancel(action);
         }
+        activeResources.release(target);
         if (target instanceof ImageView) {
             ImageView targetImageView = (ImageView) target;
             DeferredRequestCreator deferredRequestCreator = targetToDeferredRequestCreator.remove(targetImageView);
@@ -220,6 +321,49 @@ public class EasyLoader implements Provider {
         submit(action);
     }
 
+    /**
+     * 修改target当前请求的优先级，比如View滑入屏幕时提高、滑出屏幕时降低。
+     * 还在排队的请求会按新的优先级重新排队，已经开始执行的请求不受影响
+     */
+    public <T> void setPriority(T target, Priority priority) {
+        checkMain();
+        if (target == null || priority == null) {
+            throw new IllegalArgumentException("target == null || priority == null");
+        }
+        Action action = targetToAction.get(target);
+        if (action != null && action.getPriority() != priority) {
+            action.setPriority(priority);
+            dispatcher.dispatchPriorityChange(action);
+        }
+    }
+
+    /**
+     * 设置tag的权重，相同优先级的请求在不同tag之间按权重分配线程，默认为1。
+     * 没有设置tag的请求共用{@link TagStats#UNTAGGED}。设置过的tag会被强引用，设为1时移除
+     */
+    public void setTagWeight(Object tag, int weight) {
+        service.getTagScheduler().setWeight(tag, weight);
+    }
+
+    /**
+     * 限制tag在每个阶段(磁盘、下载、解码)的线程池中同时执行的任务数，避免一个tag的大量请求占满线程。
+     * 设置过的tag会被强引用，设为0时取消限制并移除
+     */
+    public void setTagMaxRunning(Object tag, int maxRunning) {
+        service.getTagScheduler().setMaxRunning(tag, maxRunning);
+    }
+
+    /**
+     * 取消{@link RequestCreator#fetch(Callback)}提交的请求，不再回调。相同的其他请求不受影响
+     */
+    public void cancelFetch(Action action) {
+        if (action == null) {
+            throw new IllegalArgumentException("action == null");
+        }
+        action.cancel();
+        dispatcher.dispatchCancel(action);
+    }
+
     public <T> void cancelRequest(T target) {
         if (target == null) {
             throw new IllegalArgumentException("view cannot be null.");
@@ -232,7 +376,18 @@ public class EasyLoader implements Provider {
      *
      * @param hunter 待处理的请求
      */
-    private void complete(BitmapHunter hunter) {
+    void complete(BitmapHunter hunter) {
+        try {
+            deliver(hunter);
+        } finally {
+            if (hunter.isPinned()) {
+                // 已经交给调用者，或者已经没有调用者需要
+                recycler.unpin(hunter.getResult());
+            }
+        }
+    }
+
+    private void deliver(BitmapHunter hunter) {
 
         Action single = hunter.getAction();
         List<Action> joined = hunter.getActions();
@@ -274,7 +429,48 @@ public class EasyLoader implements Provider {
     }
 
     public Bitmap quickMemoryCacheCheck(String key) {
-        return memoryCache.get(key);
+        Bitmap cached = activeResources.get(key);
+        if (cached == null) {
+            cached = memoryCache.get(key);
+        }
+        recycler.markExported(cached);
+        return cached;
+    }
+
+    /**
+     * 记录target正在显示bitmap，显示期间bitmap不会被内存缓存淘汰，target的请求被取消、替换或者target被GC后释放
+     */
+    public void activate(Object target, String key, Bitmap bitmap, int memoryPolicy) {
+        activeResources.acquire(target, key, bitmap, shouldWriteToMemoryCache(memoryPolicy));
+    }
+
+    ActiveResources getActiveResources() {
+        return activeResources;
+    }
+
+    /**
+     * 正在加载的请求，按请求的key合并
+     */
+    SingleFlight<String, Bitmap> getHuntFlights() {
+        return huntFlights;
+    }
+
+    /**
+     * 正在进行的原始数据下载，按原始数据的key合并
+     */
+    SourceFetcher getSourceFetcher() {
+        return sourceFetcher;
+    }
+
+    DiskCacheWriter getDiskCacheWriter() {
+        return diskCacheWriter;
+    }
+
+    /**
+     * 标记Bitmap已经交给调用者，之后即使被内存缓存淘汰也不会放入{@link BitmapPool}复用
+     */
+    public void exportBitmap(Bitmap bitmap) {
+        recycler.markExported(bitmap);
     }
 
 
@@ -313,6 +509,14 @@ public class EasyLoader implements Provider {
             if (from == null) {
                 throw new AssertionError("LoadedFrom cannot be null.");
             }
+            // fetch只用于预先缓存，结果不会交给调用者
+            if (!(action instanceof FetchAction)) {
+                recycler.markExported(result);
+            }
+            Object target = action.getTarget();
+            if (target != null && (action instanceof ImageViewAction || action instanceof TargetAction)) {
+                activate(target, action.getKey(), result, action.getMemoryPolicy());
+            }
             action.onComplete(result, from);
         } else {
             action.onError();
@@ -321,14 +525,16 @@ public class EasyLoader implements Provider {
 
     /**
      * 当Action中的target被GC掉之后，会把target的弱引用保存到{@link EasyLoader#referenceQueue}中
-     * 通过检查检查这个队列，把target对应的Action取消
+     * 通过检查检查这个队列，把target对应的Action取消，并释放target正在使用的Bitmap
      */
     private static class CleanupThread extends Thread {
         private final ReferenceQueue<Object> referenceQueue;
+        private final ActiveResources        activeResources;
         private final Handler                handler;
 
-        CleanupThread(ReferenceQueue<Object> referenceQueue, Handler handler) {
+        CleanupThread(ReferenceQueue<Object> referenceQueue, ActiveResources activeResources, Handler handler) {
             this.referenceQueue = referenceQueue;
+            this.activeResources = activeResources;
             this.handler = handler;
             setDaemon(true);
             setName("EasyLoader-refQueue");
@@ -340,11 +546,13 @@ public class EasyLoader implements Provider {
             while (true) {
                 try {
                     // FIXME: 2016/10/26 referenceQueue队列的弱引用通过get方法应该一直返回null，如何得到对应的target？
-                    Action.RequestWeakReference<?> remove = (Action.RequestWeakReference<?>) referenceQueue.remove(1000);
-                    if (remove != null) {
+                    Reference<?> remove = referenceQueue.remove(1000);
+                    if (remove instanceof ActiveResources.ResourceReference) {
+                        activeResources.release((ActiveResources.ResourceReference) remove);
+                    } else if (remove != null) {
                         Message message = handler.obtainMessage();
                         message.what = Dispatcher.REQUEST_GCED;
-                        message.obj = remove.getAction();
+                        message.obj = ((Action.RequestWeakReference<?>) remove).getAction();
                         handler.sendMessage(message);
                     }
                 } catch (InterruptedException e) {
@@ -383,6 +591,21 @@ public class EasyLoader implements Provider {
         return singleton;
     }
 
+    /**
+     * 设置全局单例，用于通过{@link Builder}自定义缓存等配置，必须在第一次调用{@link #with(Context)}之前调用
+     */
+    public static void setSingletonInstance(@NonNull EasyLoader loader) {
+        if (loader == null) {
+            throw new IllegalArgumentException("EasyLoader must not be null.");
+        }
+        synchronized (EasyLoader.class) {
+            if (singleton != null) {
+                throw new IllegalStateException("Singleton instance already exists.");
+            }
+            singleton = loader;
+        }
+    }
+
     /**
      * 加载uri指定图片
      */
@@ -425,6 +648,83 @@ public class EasyLoader implements Provider {
         return load(Uri.parse(uri));
     }
 
+    /**
+     * @return 内存缓存的统计数据，正在显示的Bitmap不在内存缓存中，不计入大小
+     */
+    public CacheStats memoryCacheStats() {
+        return memoryCache.getStats();
+    }
+
+    /**
+     * @return 下载并发控制的当前线程数以及测量的吞吐量、首字节时间
+     */
+    public DownloadStats downloadStats() {
+        return concurrency.getStats();
+    }
+
+    /**
+     * @return 所有阶段合计的排队请求数和排队已满时丢弃的请求数
+     */
+    public QueueStats queueStats() {
+        return dispatcher.queueStats();
+    }
+
+    /**
+     * @return 每个有任务的tag在所有阶段合计的排队和执行中的任务数
+     */
+    public Map<Object, TagStats> tagStats() {
+        return dispatcher.tagStats();
+    }
+
+    /**
+     * @return 处理结果磁盘缓存的统计数据，没有可用的磁盘缓存时返回null
+     */
+    public CacheStats diskCacheStats() {
+        return diskCache == null ? null : diskCache.getStats();
+    }
+
+    /**
+     * @return 原始数据磁盘缓存的统计数据，没有可用的磁盘缓存时返回null
+     */
+    public CacheStats sourceCacheStats() {
+        return sourceCache == null ? null : sourceCache.getStats();
+    }
+
+    /**
+     * @return 处理结果磁盘缓存每个分区的统计数据，磁盘缓存没有分区时返回空Map
+     */
+    public Map<String, CacheStats> diskCachePartitionStats() {
+        return partitionStats(diskCache);
+    }
+
+    /**
+     * @return 原始数据磁盘缓存每个分区的统计数据，磁盘缓存没有分区时返回空Map
+     */
+    public Map<String, CacheStats> sourceCachePartitionStats() {
+        return partitionStats(sourceCache);
+    }
+
+    private static Map<String, CacheStats> partitionStats(CacheManager<String, ?> cache) {
+        if (cache instanceof PartitionedDiskCache) {
+            return ((PartitionedDiskCache<?>) cache).getPartitionStats();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return 等待写入磁盘缓存的任务数
+     */
+    public int diskWriteQueueDepth() {
+        return diskCacheWriter.getQueueDepth();
+    }
+
+    /**
+     * @return 因为写入队列已满而放弃写入磁盘缓存的次数
+     */
+    public long droppedDiskWriteCount() {
+        return diskCacheWriter.getDroppedCount();
+    }
+
     @Override
     public Context getContext() {
         return context;
@@ -446,10 +746,20 @@ public class EasyLoader implements Provider {
     }
 
     @Override
-    public CacheManager<String, Bitmap> getDiskCacheManager() {
+    public CacheManager<String, InputStream> getDiskCacheManager() {
         return diskCache;
     }
 
+    @Override
+    public CacheManager<String, InputStream> getSourceCacheManager() {
+        return sourceCache;
+    }
+
+    @Override
+    public BitmapPool getBitmapPool() {
+        return recycler.getPool();
+    }
+
     @Override
     public Bitmap.Config getDefaultBitmapConfig() {
         return defaultBitmapConfig;
@@ -470,77 +780,117 @@ public class EasyLoader implements Provider {
         return indicatorsEnabled;
     }
 
-    private static class Builder {
-
-        private final Context                      context;
-        private       AdjustableExecutorService    service;
-        private       boolean                      logEnable;
-        private       boolean                      indicatorsEnabled;
-        private       CacheManager<String, Bitmap> memoryCacheManager;
-        private       CacheManager<String, Bitmap> diskCacheManager;
-        private       File                         cacheDirectory;
-        private       OnLoadListener               listener;
-        private       RequestTransformer           transformer;
-        private       Bitmap.Config                defaultBitmapConfig;
-        private       Downloader                   downloader;
-        private       QueueProcessType             queueProcessType;
-        private       List<RequestHandler>         requestHandlers;
-        private       long                         maxMemoryCacheSize;
-        private       long                         maxDiskCacheSize;
-
-        private Builder(Context context) {
+    public static class Builder {
+
+        private static final int RESULT_CACHE_PERCENT    = 20;
+        private static final int THUMBNAIL_CACHE_PERCENT = 30;
+        private static final int THUMBNAIL_MAX_SIZE      = 300;
+
+        private final Context                           context;
+        private       AdjustableExecutorService         service;
+        private       boolean                           logEnable;
+        private       boolean                           indicatorsEnabled;
+        private       CacheManager<String, Bitmap>      memoryCacheManager;
+        private       MemoryCacheFactory                memoryCacheFactory;
+        private       CacheManager<String, InputStream> diskCacheManager;
+        private       CacheManager<String, InputStream> sourceCacheManager;
+        private       BitmapPool                        bitmapPool;
+        private       File                              cacheDirectory;
+        private       OnLoadListener                    listener;
+        private       RequestTransformer                transformer;
+        private       Bitmap.Config                     defaultBitmapConfig;
+        private       Downloader                        downloader;
+        private       QueueProcessType                  queueProcessType;
+        private       List<RequestHandler>              requestHandlers;
+        private       long                              maxMemoryCacheSize;
+        private       long                              maxDiskCacheSize;
+        private       int                               minDownloadThreads;
+        private       int                               maxDownloadThreads;
+        private       int                               maxQueuedRequests;
+        private       long                              maxBitmapPoolSize;
+
+        public Builder(Context context) {
             if (context == null) {
                 throw new IllegalArgumentException("Context can not be null");
             }
             this.context = context.getApplicationContext();
         }
 
-        Builder logEnable(boolean enable) {
+        public Builder logEnable(boolean enable) {
             this.logEnable = enable;
             return this;
         }
 
-        Builder indicatorsEnabled(boolean enable) {
+        public Builder indicatorsEnabled(boolean enable) {
             this.indicatorsEnabled = enable;
             return this;
         }
 
-        Builder memoryCache(CacheManager<String, Bitmap> memoryCache) {
+        /**
+         * 直接指定内存缓存，淘汰的Bitmap不会放回{@link BitmapPool}复用，
+         * 需要复用时使用{@link #memoryCache(MemoryCacheFactory)}
+         */
+        public Builder memoryCache(CacheManager<String, Bitmap> memoryCache) {
             this.memoryCacheManager = memoryCache;
             return this;
         }
 
-        Builder diskCache(CacheManager<String, Bitmap> diskCache) {
+        /**
+         * 指定内存缓存的实现，比如{@link MemoryCacheFactory#TINY_LFU}，创建时传入EasyLoader的淘汰监听器
+         */
+        public Builder memoryCache(MemoryCacheFactory factory) {
+            this.memoryCacheFactory = factory;
+            return this;
+        }
+
+        /**
+         * 保存处理结果的磁盘缓存，只有使用{@link DiskPolicy#CACHE_RESULT}的请求会写入，
+         * 命中时返回编码后的数据，由BitmapHunter按请求的参数解码
+         */
+        public Builder diskCache(CacheManager<String, InputStream> diskCache) {
             this.diskCacheManager = diskCache;
             return this;
         }
 
-        Builder cacheDirectory(File cacheDir) {
+        /**
+         * 保存原始数据(比如网络下载的图片)的磁盘缓存，不同尺寸和变换的请求共用
+         */
+        public Builder sourceCache(CacheManager<String, InputStream> sourceCache) {
+            this.sourceCacheManager = sourceCache;
+            return this;
+        }
+
+        public Builder bitmapPool(BitmapPool bitmapPool) {
+            this.bitmapPool = bitmapPool;
+            return this;
+        }
+
+        public Builder cacheDirectory(File cacheDir) {
             this.cacheDirectory = cacheDir;
             return this;
         }
 
-        Builder onLoadListener(OnLoadListener onLoadListener) {
+        public Builder onLoadListener(OnLoadListener onLoadListener) {
             this.listener = onLoadListener;
             return this;
         }
 
-        Builder RequestTransformer(RequestTransformer transformer) {
+        public Builder RequestTransformer(RequestTransformer transformer) {
             this.transformer = transformer;
             return this;
         }
 
-        Builder defaultBitmapConfig(Bitmap.Config config) {
+        public Builder defaultBitmapConfig(Bitmap.Config config) {
             this.defaultBitmapConfig = config;
             return this;
         }
 
-        Builder downloader(Downloader downloader) {
+        public Builder downloader(Downloader downloader) {
             this.downloader = downloader;
             return this;
         }
 
-        Builder queueProcessType(QueueProcessType queueProcessType) {
+        public Builder queueProcessType(QueueProcessType queueProcessType) {
             this.queueProcessType = queueProcessType;
             return this;
         }
@@ -550,76 +900,173 @@ public class EasyLoader implements Provider {
             return this;
         }
 
-        Builder maxMemoryCacheSize(long maxMemoryCacheSize) {
+        public Builder maxMemoryCacheSize(long maxMemoryCacheSize) {
             this.maxMemoryCacheSize = maxMemoryCacheSize;
             return this;
         }
 
-        Builder maxDiskCacheSize(long maxDiskCacheSize) {
+        public Builder maxDiskCacheSize(long maxDiskCacheSize) {
             this.maxDiskCacheSize = maxDiskCacheSize;
             return this;
         }
 
-        EasyLoader build() {
+        /**
+         * 同时下载的线程数范围，实际的线程数根据测量的吞吐量和首字节时间在范围内自动调整
+         */
+        public Builder downloadThreads(int minThreads, int maxThreads) {
+            if (minThreads <= 0 || maxThreads < minThreads) {
+                throw new IllegalArgumentException("minThreads <= 0 || maxThreads < minThreads");
+            }
+            this.minDownloadThreads = minThreads;
+            this.maxDownloadThreads = maxThreads;
+            return this;
+        }
+
+        /**
+         * 每个阶段的线程池中排队请求数的上限，超过时丢弃target已被回收的请求或者最早的低优先级请求，
+         * 被丢弃的请求以{@link RequestShedException}失败
+         */
+        public Builder maxQueuedRequests(int maxQueuedRequests) {
+            if (maxQueuedRequests <= 0) {
+                throw new IllegalArgumentException("maxQueuedRequests <= 0");
+            }
+            this.maxQueuedRequests = maxQueuedRequests;
+            return this;
+        }
+
+        public Builder maxBitmapPoolSize(long maxBitmapPoolSize) {
+            this.maxBitmapPoolSize = maxBitmapPoolSize;
+            return this;
+        }
+
+        private static LruDiskCache<InputStream> createStreamCache(File directory, long maxSize, int appVersion) {
+            return new LruDiskCache<>(directory, maxSize, appVersion, new LruDiskCache.FileConverter<InputStream>() {
+                @Override
+                public InputStream readFrom(File file) {
+                    try {
+                        return new BufferedInputStream(new FileInputStream(file));
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+
+                @Override
+                public boolean writeTo(InputStream value, File to) {
+                    OutputStream os = null;
+                    try {
+                        os = new BufferedOutputStream(new FileOutputStream(to));
+                        byte[] buffer = new byte[8 * 1024];
+                        int n;
+                        while ((n = value.read(buffer)) != -1) {
+                            os.write(buffer, 0, n);
+                        }
+                        os.flush();
+                        return true;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        CloseUtils.close(os);
+                    }
+                    return false;
+                }
+            });
+        }
+
+        /**
+         * 分为缩略图和大图两个分区，各自淘汰，大图不会挤掉列表中的缩略图
+         */
+        private static CacheManager<String, InputStream> createPartitionedCache(File directory, long maxSize, int appVersion) {
+            long maxThumbnailSize = maxSize * THUMBNAIL_CACHE_PERCENT / 100;
+            LruDiskCache<InputStream> full = createStreamCache(new File(directory, PartitionedDiskCache.PARTITION_FULL),
+                                                               maxSize - maxThumbnailSize,
+                                                               appVersion);
+            // 分区之前的缓存文件直接保存在目录下，在后台打开时移到大图分区
+            full.migrateFrom(directory);
+            Map<String, CacheManager<String, InputStream>> partitions = new LinkedHashMap<>();
+            partitions.put(PartitionedDiskCache.PARTITION_THUMBNAIL,
+                           createStreamCache(new File(directory, PartitionedDiskCache.PARTITION_THUMBNAIL), maxThumbnailSize, appVersion));
+            partitions.put(PartitionedDiskCache.PARTITION_FULL, full);
+            return new PartitionedDiskCache<>(partitions, PartitionedDiskCache.PARTITION_FULL, THUMBNAIL_MAX_SIZE);
+        }
+
+        private static void warmUp(CacheManager<String, ?> cache) {
+            if (cache instanceof LruDiskCache) {
+                ((LruDiskCache<?>) cache).warmUp();
+            } else if (cache instanceof PartitionedDiskCache) {
+                ((PartitionedDiskCache<?>) cache).warmUp();
+            }
+        }
+
+        public EasyLoader build() {
 
             if (service == null) {
-                service = new AdjustableExecutorService();
+                if (maxQueuedRequests == 0) {
+                    maxQueuedRequests = AdjustableExecutorService.DEFAULT_QUEUE_CAPACITY;
+                }
+                service = new AdjustableExecutorService(AdjustableExecutorService.DEFAULT_THREAD_COUNT,
+                                                        new TagScheduler(),
+                                                        maxQueuedRequests);
+            }
+            if (minDownloadThreads == 0) {
+                minDownloadThreads = AdaptiveConcurrency.DEFAULT_MIN_LIMIT;
+                maxDownloadThreads = AdaptiveConcurrency.DEFAULT_MAX_LIMIT;
             }
+            AdaptiveConcurrency concurrency = new AdaptiveConcurrency(service, minDownloadThreads, maxDownloadThreads);
 
             if (maxMemoryCacheSize == 0) {
                 maxMemoryCacheSize = Utils.calculateMemoryCacheSize(context);
             }
 
+            if (bitmapPool == null) {
+                if (maxBitmapPoolSize == 0) {
+                    maxBitmapPoolSize = maxMemoryCacheSize / 4;
+                }
+                bitmapPool = new LruBitmapPool(maxBitmapPoolSize);
+            }
+            DiskCacheWriter diskCacheWriter = new DiskCacheWriter();
+            BitmapRecycler recycler = new BitmapRecycler(bitmapPool, diskCacheWriter);
+
             if (memoryCacheManager == null) {
-                memoryCacheManager = new LruMemoryCache<>(maxMemoryCacheSize, new SizeCalculator<Bitmap>() {
+                if (memoryCacheFactory == null) {
+                    memoryCacheFactory = MemoryCacheFactory.SEGMENTED_LRU;
+                }
+                memoryCacheManager = memoryCacheFactory.create(maxMemoryCacheSize, new SizeCalculator<Bitmap>() {
                     @Override
                     public int getSizeOf(Bitmap value) {
                         return BitmapUtils.getBitmapBytes(value);
                     }
-                });
+                }, recycler);
             }
 
-            if (diskCacheManager == null) {
+            if (diskCacheManager == null || sourceCacheManager == null) {
                 if (cacheDirectory == null) {
-                    File directory = context.getExternalCacheDir();
-                    if (directory != null) {
-                        cacheDirectory = new File(directory, "easy_loader_disk_cache");
-                    }
+                    cacheDirectory = context.getExternalCacheDir();
                 }
                 if (cacheDirectory != null) {
                     if (cacheDirectory.mkdirs() || (cacheDirectory.exists() && cacheDirectory.isDirectory())) {
                         if (maxDiskCacheSize == 0) {
                             maxDiskCacheSize = Utils.calculateDiskCacheSize(cacheDirectory);
                         }
-                        diskCacheManager = new LruDiskCache<>(cacheDirectory,
-                                                              maxDiskCacheSize,
-                                                              AppUtils.getVersionCode(context),
-                                                              new LruDiskCache.FileConverter<Bitmap>() {
-                                                                  @Override
-                                                                  public Bitmap readFrom(File file) {
-                                                                      return BitmapFactory.decodeFile(file.getAbsolutePath(),
-                                                                                                      null);
-                                                                  }
-
-                                                                  @Override
-                                                                  public boolean writeTo(Bitmap value, File to) {
-                                                                      try {
-                                                                          BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(
-                                                                                  to));
-                                                                          value.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-                                                                          bos.flush();
-                                                                          bos.close();
-                                                                          return true;
-                                                                      } catch (IOException e) {
-                                                                          e.printStackTrace();
-                                                                      }
-                                                                      return false;
-                                                                  }
-                                                              });
+                        int appVersion = AppUtils.getVersionCode(context);
+                        // 大部分空间留给原始数据，处理结果只缓存显式要求的请求
+                        long maxResultCacheSize = maxDiskCacheSize * RESULT_CACHE_PERCENT / 100;
+                        if (sourceCacheManager == null) {
+                            // 原始数据按URI缓存，同一张图片的缩略图和大图请求共用，不分区
+                            sourceCacheManager = createStreamCache(new File(cacheDirectory, "easy_loader_source_cache"),
+                                                                   maxDiskCacheSize - maxResultCacheSize,
+                                                                   appVersion);
+                        }
+                        if (diskCacheManager == null) {
+                            diskCacheManager = createPartitionedCache(new File(cacheDirectory, "easy_loader_disk_cache"),
+                                                                      maxResultCacheSize,
+                                                                      appVersion);
+                        }
                     }
-
                 }
             }
+            // 提前在后台读取磁盘缓存的索引，避免第一个请求等待
+            warmUp(sourceCacheManager);
+            warmUp(diskCacheManager);
 
             if (transformer == null) {
                 transformer = RequestTransformer.IDENTITY;
@@ -635,8 +1082,12 @@ public class EasyLoader implements Provider {
 
             return new EasyLoader(context,
                                   service,
+                                  concurrency,
                                   memoryCacheManager,
                                   diskCacheManager,
+                                  sourceCacheManager,
+                                  recycler,
+                                  diskCacheWriter,
                                   listener,
                                   requestHandlers,
                                   defaultBitmapConfig,
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import android.annotation.TargetApi;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+
+/**
+ * 在主线程中按显示帧交付加载结果
+ *
+ * <p>Dispatcher完成的hunter交给主线程后在下一帧开始时交付，每一帧最多使用{@link #FRAME_BUDGET_NANOS}，
+ * 超出的留到之后的帧。大量结果同时完成时分散到多个帧，不会造成掉帧，也不会像固定延迟那样增加等待时间。
+ * API 16以下没有Choreographer，第一批立即交付，超出的按帧间隔通过Handler调度</p>
+ *
+ * <p>只在主线程中访问</p>
+ */
+class FrameDeliveryScheduler {
+
+    /**
+     * 每一帧交付结果的时间预算，60fps下一帧为16ms，留出布局和绘制的时间
+     */
+    private static final long FRAME_BUDGET_NANOS = 4 * 1000 * 1000;
+    private static final long FRAME_INTERVAL_MS  = 16;
+
+    private final Handler                  handler;
+    private final ArrayDeque<BitmapHunter> pending         = new ArrayDeque<>();
+    private final Runnable                 deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverFrame();
+        }
+    };
+    private       FrameCallback            frameCallback;
+    private       boolean                  scheduled;
+
+    FrameDeliveryScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * 加入待交付的hunter，在下一帧开始时交付
+     */
+    void deliver(List<BitmapHunter> hunters) {
+        pending.addAll(hunters);
+        if (scheduled || pending.isEmpty()) {
+            return;
+        }
+        scheduled = true;
+        if (SDK_INT >= JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            handler.post(deliverRunnable);
+        }
+    }
+
+    private void deliverFrame() {
+        scheduled = false;
+        long start = System.nanoTime();
+        BitmapHunter hunter;
+        // 每一帧至少交付一个，避免单个耗时的交付导致饿死
+        while ((hunter = pending.poll()) != null) {
+            hunter.getLoader().complete(hunter);
+            if (System.nanoTime() - start >= FRAME_BUDGET_NANOS) {
+                break;
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        scheduled = true;
+        if (SDK_INT >= JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            handler.postDelayed(deliverRunnable, FRAME_INTERVAL_MS);
+        }
+    }
+
+    @TargetApi(JELLY_BEAN)
+    private void postFrameCallback() {
+        if (frameCallback == null) {
+            // Choreographer与线程绑定，在主线程中第一次使用时创建
+            frameCallback = new FrameCallback(this);
+        }
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    @TargetApi(JELLY_BEAN)
+    private static final class FrameCallback implements Choreographer.FrameCallback {
+
+        private final FrameDeliveryScheduler scheduler;
+
+        FrameCallback(FrameDeliveryScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            scheduler.deliverFrame();
+        }
+    }
+}
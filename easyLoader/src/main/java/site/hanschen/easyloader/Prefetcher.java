@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import site.hanschen.easyloader.action.Action;
+import site.hanschen.easyloader.request.RequestCreator;
+import site.hanschen.easyloader.util.ThreadChecker;
+
+/**
+ * 列表滚动时预先加载即将显示的图片，绑定时直接命中内存缓存
+ *
+ * <p>Adapter在滚动时调用{@link #onScroll(int, int, int)}，按滚动方向对可见范围之后的{@link #distance}个位置
+ * 发起{@link RequestCreator#fetch(Callback)}，由近到远；落到可见范围后面的预加载被取消。
+ * 同时进行的预加载不超过{@link #maxInFlight}个，并且以{@link Priority#LOW}执行，不会与可见的请求竞争。
+ * {@link Source}返回的请求需要与绑定时的尺寸、变换相同，才能生成相同的内存缓存key</p>
+ *
+ * <p>只能在主线程中使用，不再需要时调用{@link #cancelAll()}</p>
+ */
+public class Prefetcher {
+
+    public interface Source {
+        /**
+         * @return position对应的请求，不要设置优先级，不能使用fit()；没有图片时返回null
+         */
+        RequestCreator create(int position);
+    }
+
+    public static final int DEFAULT_DISTANCE      = 6;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    private final EasyLoader          loader;
+    private final Source              source;
+    private final int                 distance;
+    private final int                 maxInFlight;
+    private final SparseArray<Action> inFlight = new SparseArray<>();
+    /**
+     * 已经完成或者没有图片的位置，离开预加载范围后移除
+     */
+    private final SparseBooleanArray  done     = new SparseBooleanArray();
+    private       int                 first    = -1;
+    private       int                 last     = -1;
+    private       int                 itemCount;
+    private       boolean             forward  = true;
+
+    public Prefetcher(EasyLoader loader, Source source) {
+        this(loader, source, DEFAULT_DISTANCE, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param distance    在滚动方向上预加载的位置数
+     * @param maxInFlight 同时进行的预加载的最大数量
+     */
+    public Prefetcher(EasyLoader loader, Source source, int distance, int maxInFlight) {
+        if (loader == null || source == null || distance <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("loader == null || source == null || distance <= 0 || maxInFlight <= 0");
+        }
+        this.loader = loader;
+        this.source = source;
+        this.distance = distance;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 可见范围变化，比如在OnScrollListener中调用
+     *
+     * @param firstVisible 第一个可见的位置
+     * @param lastVisible  最后一个可见的位置
+     * @param itemCount    总数
+     */
+    public void onScroll(int firstVisible, int lastVisible, int itemCount) {
+        ThreadChecker.checkMain();
+        if (firstVisible < 0 || lastVisible < firstVisible) {
+            return;
+        }
+        if (first >= 0) {
+            if (firstVisible > first || lastVisible > last) {
+                forward = true;
+            } else if (firstVisible < first || lastVisible < last) {
+                forward = false;
+            }
+        }
+        first = firstVisible;
+        last = lastVisible;
+        this.itemCount = itemCount;
+
+        cancelOutOfRange();
+        pruneDone();
+        fill();
+    }
+
+    /**
+     * 取消所有预加载，比如列表数据变化或者页面销毁时
+     */
+    public void cancelAll() {
+        ThreadChecker.checkMain();
+        for (int i = 0, n = inFlight.size(); i < n; i++) {
+            loader.cancelFetch(inFlight.valueAt(i));
+        }
+        inFlight.clear();
+        done.clear();
+        first = -1;
+        last = -1;
+    }
+
+    private int rangeStart() {
+        return forward ? last + 1 : Math.max(0, first - distance);
+    }
+
+    private int rangeEnd() {
+        return forward ? Math.min(itemCount - 1, last + distance) : first - 1;
+    }
+
+    /**
+     * 取消落到可见范围后面或者超出预加载范围的请求
+     *
+     * <p>已经可见的位置不取消，绑定的请求会合并到同一个任务中，取消也不会让任务提前结束。
+     * 在回调之前仍然计入并发数，否则快速滑动时同时进行的预加载会超过{@link #maxInFlight}</p>
+     */
+    private void cancelOutOfRange() {
+        int start = rangeStart();
+        int end = rangeEnd();
+        for (int i = inFlight.size() - 1; i >= 0; i--) {
+            int position = inFlight.keyAt(i);
+            if (position >= first && position <= last) {
+                continue;
+            }
+            if (position < start || position > end) {
+                loader.cancelFetch(inFlight.valueAt(i));
+                inFlight.removeAt(i);
+            }
+        }
+    }
+
+    private void pruneDone() {
+        int start = first - distance;
+        int end = last + distance;
+        for (int i = done.size() - 1; i >= 0; i--) {
+            int position = done.keyAt(i);
+            if (position < start || position > end) {
+                done.delete(position);
+            }
+        }
+    }
+
+    /**
+     * 由近到远发起预加载，直到达到并发上限
+     */
+    private void fill() {
+        if (first < 0) {
+            return;
+        }
+        int start = rangeStart();
+        int end = rangeEnd();
+        for (int i = 0; i <= end - start && inFlight.size() < maxInFlight; i++) {
+            int position = forward ? start + i : end - i;
+            if (inFlight.indexOfKey(position) >= 0 || done.get(position)) {
+                continue;
+            }
+            RequestCreator creator = source.create(position);
+            Action action = creator == null ? null : creator.fetch(new PrefetchCallback(this, position));
+            if (action == null) {
+                done.put(position, true);
+            } else {
+                inFlight.put(position, action);
+            }
+        }
+    }
+
+    /**
+     * 预加载结束，失败的也不再重试，避免在列表中反复请求
+     */
+    private void onFinished(int position) {
+        if (inFlight.indexOfKey(position) < 0) {
+            return;
+        }
+        inFlight.remove(position);
+        done.put(position, true);
+        fill();
+    }
+
+    private static final class PrefetchCallback implements Callback {
+
+        private final Prefetcher prefetcher;
+        private final int        position;
+
+        PrefetchCallback(Prefetcher prefetcher, int position) {
+            this.prefetcher = prefetcher;
+            this.position = position;
+        }
+
+        @Override
+        public void onSuccess() {
+            prefetcher.onFinished(position);
+        }
+
+        @Override
+        public void onError() {
+            prefetcher.onFinished(position);
+        }
+    }
+}
@@ -18,9 +18,11 @@ package site.hanschen.easyloader;
 import android.content.Context;
 import android.graphics.Bitmap;
 
+import site.hanschen.easyloader.cache.BitmapPool;
 import site.hanschen.easyloader.cache.CacheManager;
 import site.hanschen.easyloader.request.RequestHandler;
 
+import java.io.InputStream;
 import java.lang.ref.ReferenceQueue;
 import java.util.List;
 
@@ -34,7 +36,11 @@ interface Provider {
 
     CacheManager<String, Bitmap> getMemoryCacheManager();
 
-    CacheManager<String, Bitmap> getDiskCacheManager();
+    CacheManager<String, InputStream> getDiskCacheManager();
+
+    CacheManager<String, InputStream> getSourceCacheManager();
+
+    BitmapPool getBitmapPool();
 
     Bitmap.Config getDefaultBitmapConfig();
 
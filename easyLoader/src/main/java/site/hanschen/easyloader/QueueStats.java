@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+/**
+ * 某一时刻线程池排队队列的数据，不会随任务变化
+ */
+public final class QueueStats {
+
+    private final int  queued;
+    private final int  capacity;
+    private final long shedCount;
+
+    public QueueStats(int queued, int capacity, long shedCount) {
+        this.queued = queued;
+        this.capacity = capacity;
+        this.shedCount = shedCount;
+    }
+
+    /**
+     * @return 排队等待执行的任务数
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return 超过这个数量时开始丢弃任务，只有高优先级的任务时可以超出
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 队列已满时累计丢弃的任务数
+     */
+    public long getShedCount() {
+        return shedCount;
+    }
+
+    /**
+     * @return 两份数据的合计，用于统计多个线程池
+     */
+    public QueueStats plus(QueueStats other) {
+        return new QueueStats(queued + other.queued, capacity + other.capacity, shedCount + other.shedCount);
+    }
+
+    @Override
+    public String toString() {
+        return "QueueStats{" +
+                "queued=" + queued +
+                ", capacity=" + capacity +
+                ", shedCount=" + shedCount +
+                '}';
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+/**
+ * 线程池的排队队列已满时被丢弃的请求的失败原因，通过{@link site.hanschen.easyloader.callback.OnLoadListener}通知。
+ * 被丢弃的是target已被回收或请求已取消的任务，或者最早的低优先级、普通优先级任务，需要时可以重新加载
+ */
+public class RequestShedException extends Exception {
+
+    public RequestShedException(String message) {
+        super(message);
+    }
+}
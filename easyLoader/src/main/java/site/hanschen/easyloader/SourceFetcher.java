@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import site.hanschen.easyloader.bean.CacheMetadata;
+import site.hanschen.easyloader.downloader.ResponseException;
+import site.hanschen.easyloader.request.Result;
+import site.hanschen.easyloader.util.CancellationSignal;
+import site.hanschen.easyloader.util.CloseUtils;
+
+/**
+ * 按原始数据的key合并下载，同一个URI不同尺寸、不同变换的请求只下载一次，之后各自解码
+ *
+ * <p>条件请求的结果(比如304)只对相同的校验信息有效，因此只合并校验信息相同的请求</p>
+ *
+ * <p>下载的数据读入内存后分给每个等待的请求。每个请求通过{@link Ticket}持有下载的一个引用，
+ * 请求被取消时释放，只有全部引用都被释放后才通过{@link CancellationSignal}中止下载，
+ * 阻塞在连接或读取中的线程随之返回</p>
+ */
+class SourceFetcher {
+
+    interface Call {
+        /**
+         * @param signal 下载被中止时取消，为null时不能取消
+         */
+        Result call(CancellationSignal signal) throws IOException;
+    }
+
+    /**
+     * 一个请求对下载的引用，请求取消时调用{@link #release()}
+     */
+    static final class Ticket {
+
+        private          Download download;
+        private          boolean  joined;
+        private volatile boolean  released;
+        private          byte[]   bytes;
+
+        synchronized void attach(Download download, boolean joined) throws InterruptedIOException {
+            if (released) {
+                throw new InterruptedIOException("Canceled");
+            }
+            this.download = download;
+            this.joined = joined;
+        }
+
+        /**
+         * @return 仍然持有的下载，已经被{@link #release()}释放时返回null
+         */
+        synchronized Download detach() {
+            Download download = this.download;
+            this.download = null;
+            return download;
+        }
+
+        boolean isReleased() {
+            return released;
+        }
+
+        /**
+         * @return 最近一次获取的数据是否由其他请求下载
+         */
+        synchronized boolean isJoined() {
+            return joined;
+        }
+
+        synchronized void setBytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return 最近一次获取的数据，和结果中的InputStream内容相同，用于写入磁盘缓存，不需要再次拷贝
+         */
+        synchronized byte[] takeBytes() {
+            byte[] bytes = this.bytes;
+            this.bytes = null;
+            return bytes;
+        }
+
+        /**
+         * 在锁外释放下载，唤醒正在等待的线程时不持有Ticket的锁
+         */
+        void release() {
+            Download held;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                held = download;
+                download = null;
+            }
+            if (held != null) {
+                held.release();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Download> downloads = new ConcurrentHashMap<>();
+    private final AdaptiveConcurrency                 concurrency;
+
+    SourceFetcher(AdaptiveConcurrency concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * 没有正在进行的相同下载时在当前线程下载，否则等待正在进行的下载
+     *
+     * @param sourceKey  原始数据的key
+     * @param validators 条件请求使用的缓存信息，没有时为null
+     * @param ticket     调用者的引用
+     * @param call       发起下载
+     * @return 以InputStream保存数据的结果，每个调用者得到独立的InputStream
+     */
+    Result fetch(String sourceKey, CacheMetadata validators, Ticket ticket, Call call) throws IOException {
+        String key = flightKey(sourceKey, validators);
+        ticket.setBytes(null);
+        while (true) {
+            Download download = new Download();
+            Download existing = downloads.putIfAbsent(key, download);
+            if (existing == null) {
+                return lead(key, download, ticket, call);
+            }
+            if (existing.join()) {
+                try {
+                    ticket.attach(existing, true);
+                } catch (InterruptedIOException e) {
+                    existing.release();
+                    throw e;
+                }
+                Result result;
+                try {
+                    result = existing.await(ticket);
+                } catch (InterruptedIOException e) {
+                    // 请求被取消时引用已经由Ticket释放，线程被中断时在这里释放
+                    Download held = ticket.detach();
+                    if (held != null) {
+                        held.release();
+                    }
+                    throw e;
+                } finally {
+                    ticket.detach();
+                }
+                // 直接返回Bitmap的结果和尺寸有关，不能共享
+                return result != null || !existing.hasBitmap() ? result : call.call(null);
+            }
+            // 已经完成或者被中止，帮助移除后重试
+            downloads.remove(key, existing);
+        }
+    }
+
+    private Result lead(String key, Download download, Ticket ticket, Call call) throws IOException {
+        Result result = null;
+        byte[] bytes = null;
+        Throwable error = null;
+        long start = System.nanoTime();
+        long ttfb = 0;
+        try {
+            ticket.attach(download, false);
+            result = call.call(download.signal);
+            ttfb = System.nanoTime() - start;
+            InputStream stream = result != null ? result.getStream() : null;
+            if (stream != null) {
+                try {
+                    bytes = download.read(stream);
+                } finally {
+                    CloseUtils.close(stream);
+                }
+            }
+        } catch (Throwable t) {
+            // 中止下载时关闭连接，OkHttp和HttpURLConnection抛出的是普通的IOException
+            error = download.cancelled && t instanceof IOException && !(t instanceof InterruptedIOException)
+                    ? new InterruptedIOException("Canceled")
+                    : t;
+        } finally {
+            ticket.detach();
+        }
+        recordSample(download, ttfb, bytes, error);
+        // 先关闭再移除，之后不会再有新的请求加入
+        download.close();
+        downloads.remove(key, download);
+        download.complete(result, bytes, error);
+        if (error != null) {
+            rethrow(error);
+        }
+        ticket.setBytes(bytes);
+        return bytes != null ? result.withStream(new ByteArrayInputStream(bytes)) : result;
+    }
+
+    private static String flightKey(String sourceKey, CacheMetadata validators) {
+        if (validators == null || !validators.hasValidators()) {
+            return sourceKey;
+        }
+        return sourceKey + "#" + validators.getEtag() + "#" + validators.getLastModified();
+    }
+
+    /**
+     * 把下载的首字节时间和数据量交给{@link AdaptiveConcurrency}，被取消的下载和服务器返回的错误不计入
+     */
+    private void recordSample(Download download, long ttfb, byte[] bytes, Throwable error) {
+        if (concurrency == null || download.cancelled) {
+            return;
+        }
+        if (error == null) {
+            concurrency.onSuccess(ttfb, bytes != null ? bytes.length : 0);
+        } else if (error instanceof IOException && !(error instanceof ResponseException)) {
+            concurrency.onFailure();
+        }
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    private static final class Download {
+
+        private final    CancellationSignal signal = new CancellationSignal();
+        private          int                refs   = 1;
+        private          boolean            closed;
+        private          boolean            completed;
+        private volatile boolean            cancelled;
+        private          Result             result;
+        private          byte[]             bytes;
+        private          Throwable          error;
+
+        synchronized boolean join() {
+            if (closed || cancelled) {
+                return false;
+            }
+            refs++;
+            return true;
+        }
+
+        /**
+         * 最后一个引用释放后中止下载，在锁外取消，避免关闭连接时阻塞其他线程。
+         * 同时唤醒等待的线程，被取消的请求不再等待下载完成
+         */
+        void release() {
+            synchronized (this) {
+                notifyAll();
+                if (--refs != 0 || closed) {
+                    return;
+                }
+                cancelled = true;
+            }
+            signal.cancel();
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        /**
+         * 读取全部数据，下载被中止时抛出InterruptedIOException
+         */
+        byte[] read(InputStream stream) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024 * 4];
+            int n;
+            while (!cancelled && -1 != (n = stream.read(buffer))) {
+                out.write(buffer, 0, n);
+            }
+            if (cancelled) {
+                throw new InterruptedIOException("Canceled");
+            }
+            return out.toByteArray();
+        }
+
+        synchronized void complete(Result result, byte[] bytes, Throwable error) {
+            this.result = result;
+            this.bytes = bytes;
+            this.error = error;
+            completed = true;
+            notifyAll();
+        }
+
+        synchronized boolean hasBitmap() {
+            return result != null && result.getBitmap() != null;
+        }
+
+        /**
+         * 等待下载完成，ticket被释放时抛出InterruptedIOException
+         *
+         * @return 共享的结果，数据以独立的InputStream返回；结果是Bitmap时返回null
+         */
+        Result await(Ticket ticket) throws IOException {
+            synchronized (this) {
+                while (!completed) {
+                    // Ticket先标记释放再获取这个锁唤醒，不会错过
+                    if (ticket.isReleased()) {
+                        throw new InterruptedIOException("Canceled");
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting for download");
+                    }
+                }
+                if (error != null) {
+                    rethrow(error);
+                }
+                if (bytes != null) {
+                    ticket.setBytes(bytes);
+                    return result.withStream(new ByteArrayInputStream(bytes));
+                }
+                return result != null && result.getBitmap() != null ? null : result;
+            }
+        }
+    }
+}
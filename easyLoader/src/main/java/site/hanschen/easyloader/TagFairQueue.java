@@ -0,0 +1,497 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按tag公平调度的任务队列，替代PriorityBlockingQueue
+ *
+ * <p>优先级最高的任务先出队；相同优先级的多个tag之间按{@link TagScheduler#getWeight(Object)}轮流出队：
+ * 每个tag有一个pass值，出队一个任务增加1/权重，每次选择pass最小的tag。新出现的tag从当前的pass开始，
+ * 不会因为之前空闲而连续占用线程。同一个tag内按任务自身的顺序出队。
+ * 正在执行的任务数达到{@link TagScheduler#getMaxRunning(Object)}的tag暂时跳过，
+ * 由线程池在{@link #onStart(Runnable)}和{@link #onFinish(Runnable)}中通知任务的执行状态</p>
+ *
+ * <p>排队的任务超过容量时丢弃一个任务，依次选择{@link Task#isStale()}的任务、最早的{@link Priority#LOW}任务、
+ * 最早的{@link Priority#NORMAL}任务，通过{@link Task#shed()}让它快速失败。插入的任务优先级更低时丢弃它自己，
+ * 只有高优先级的任务时不丢弃，允许超出容量。快速滑动时大量已经离开屏幕的请求不会占满队列，也不会在取消到达之前被线程执行</p>
+ */
+class TagFairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * 队列中的任务，tag和优先级在队列中时不能修改
+     */
+    interface Task {
+
+        Object getTag();
+
+        Priority getPriority();
+
+        /**
+         * @return 创建的顺序，越小越早
+         */
+        int getSequence();
+
+        /**
+         * @return 结果已经没有请求需要，在队列已满时优先丢弃。在提交任务的线程中调用，不能加锁
+         */
+        boolean isStale();
+
+        /**
+         * 任务被丢弃，已经从队列中移除，在队列的锁之外调用
+         */
+        void shed();
+    }
+
+    private static final Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Runnable lhs, Runnable rhs) {
+            if (lhs instanceof Comparable) {
+                return ((Comparable<Runnable>) lhs).compareTo(rhs);
+            }
+            return 0;
+        }
+    };
+
+    private final ReentrantLock           lock     = new ReentrantLock();
+    private final Condition               notEmpty = lock.newCondition();
+    private final Map<Object, TagQueue>   queues   = new HashMap<>();
+    private final Map<Runnable, TagQueue> started  = new IdentityHashMap<>();
+    private final TagScheduler            scheduler;
+    private final int                     capacity;
+    private       int                     count;
+    private       long                    shedCount;
+    /**
+     * 最近一次出队的tag的pass，新出现的tag从这里开始
+     */
+    private       double                  pass;
+
+    /**
+     * @param capacity 排队任务数的上限，超过时丢弃任务
+     */
+    TagFairQueue(TagScheduler scheduler, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        this.scheduler = scheduler;
+        this.capacity = capacity;
+    }
+
+    private static Object tagOf(Runnable task) {
+        return task instanceof Task ? ((Task) task).getTag() : TagStats.UNTAGGED;
+    }
+
+    private static Priority priorityOf(Runnable task) {
+        return task instanceof Task ? ((Task) task).getPriority() : Priority.NORMAL;
+    }
+
+    private TagQueue queueFor(Object tag) {
+        TagQueue queue = queues.get(tag);
+        if (queue == null) {
+            queue = new TagQueue(tag, pass);
+            queues.put(tag, queue);
+        }
+        return queue;
+    }
+
+    private void removeIfIdle(TagQueue queue) {
+        if (queue.tasks.isEmpty() && queue.running == 0) {
+            queues.remove(queue.tag);
+        }
+    }
+
+    private Runnable dequeue() {
+        TagQueue selected = null;
+        Priority best = null;
+        for (TagQueue queue : queues.values()) {
+            Runnable head = queue.tasks.peek();
+            if (head == null) {
+                continue;
+            }
+            int maxRunning = scheduler.getMaxRunning(queue.tag);
+            if (maxRunning != TagScheduler.UNLIMITED && queue.running >= maxRunning) {
+                continue;
+            }
+            Priority priority = priorityOf(head);
+            if (selected == null
+                    || priority.ordinal() > best.ordinal()
+                    || (priority == best && queue.pass < selected.pass)) {
+                selected = queue;
+                best = priority;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        Runnable task = selected.tasks.poll();
+        count--;
+        pass = selected.pass;
+        selected.pass += 1.0 / scheduler.getWeight(selected.tag);
+        selected.running++;
+        started.put(task, selected);
+        return task;
+    }
+
+    /**
+     * 任务开始执行，线程池直接交给新线程的任务没有经过队列，在这里计入执行中的任务数
+     */
+    void onStart(Runnable task) {
+        lock.lock();
+        try {
+            if (!started.containsKey(task)) {
+                TagQueue queue = queueFor(tagOf(task));
+                queue.running++;
+                started.put(task, queue);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 任务执行结束，所属的tag可能因此不再受并发上限限制，唤醒所有等待的线程重新选择
+     */
+    void onFinish(Runnable task) {
+        lock.lock();
+        try {
+            TagQueue queue = started.remove(task);
+            if (queue != null) {
+                queue.running--;
+                removeIfIdle(queue);
+                if (count > 0) {
+                    notEmpty.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 选择要丢弃的任务，没有可以丢弃的任务时返回null
+     *
+     * <p>优先丢弃已经没有请求需要的任务，其次是优先级最低的任务，同一优先级丢弃排队最久的。
+     * 正在插入的任务优先级比排队的任务都低时丢弃它自己，低优先级的预加载不会挤掉正在显示的请求</p>
+     *
+     * @param incoming 正在插入的任务，本身已经没有请求需要时直接丢弃
+     */
+    private Runnable selectVictim(Runnable incoming) {
+        if (incoming instanceof Task && ((Task) incoming).isStale()) {
+            return incoming;
+        }
+        Task victim = null;
+        for (TagQueue queue : queues.values()) {
+            for (Runnable runnable : queue.tasks) {
+                if (!(runnable instanceof Task)) {
+                    continue;
+                }
+                Task task = (Task) runnable;
+                if (task.isStale()) {
+                    return runnable;
+                }
+                if (task.getPriority() == Priority.HIGH) {
+                    continue;
+                }
+                if (victim == null
+                        || task.getPriority().ordinal() < victim.getPriority().ordinal()
+                        || (task.getPriority() == victim.getPriority() && task.getSequence() < victim.getSequence())) {
+                    victim = task;
+                }
+            }
+        }
+        if (incoming instanceof Task) {
+            Priority priority = ((Task) incoming).getPriority();
+            if (priority != Priority.HIGH && (victim == null || priority.ordinal() < victim.getPriority().ordinal())) {
+                return incoming;
+            }
+        }
+        return (Runnable) victim;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 排队的任务数、容量和累计丢弃的任务数
+     */
+    QueueStats queueStats() {
+        lock.lock();
+        try {
+            return new QueueStats(count, capacity, shedCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 每个tag排队和执行中的任务数
+     */
+    Map<Object, TagStats> snapshot() {
+        lock.lock();
+        try {
+            Map<Object, TagStats> stats = new HashMap<>();
+            for (TagQueue queue : queues.values()) {
+                stats.put(queue.tag, new TagStats(queue.tasks.size(), queue.running));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(@NonNull Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task == null");
+        }
+        Runnable victim = null;
+        lock.lock();
+        try {
+            if (count >= capacity) {
+                victim = selectVictim(task);
+                if (victim != null) {
+                    shedCount++;
+                    if (victim != task) {
+                        removeLocked(victim);
+                    }
+                }
+            }
+            if (victim != task) {
+                queueFor(tagOf(task)).tasks.offer(task);
+                count++;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (victim != null) {
+            ((Task) victim).shed();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(@NonNull Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, @NonNull TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @NonNull
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while ((task = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while ((task = dequeue()) == null && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不考虑并发上限，返回最先出队的任务
+     */
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Runnable result = null;
+            for (TagQueue queue : queues.values()) {
+                Runnable head = queue.tasks.peek();
+                if (head != null && (result == null || priorityOf(head).ordinal() > priorityOf(result).ordinal())) {
+                    result = head;
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return removeLocked((Runnable) o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean removeLocked(Runnable task) {
+        TagQueue queue = queues.get(tagOf(task));
+        if (queue == null || !queue.tasks.remove(task)) {
+            return false;
+        }
+        count--;
+        removeIfIdle(queue);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 线程池关闭时调用，不考虑并发上限
+     */
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("c == this");
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            Iterator<TagQueue> iterator = queues.values().iterator();
+            while (iterator.hasNext() && n < maxElements) {
+                TagQueue queue = iterator.next();
+                Runnable task;
+                while (n < maxElements && (task = queue.tasks.poll()) != null) {
+                    c.add(task);
+                    n++;
+                }
+                if (queue.tasks.isEmpty() && queue.running == 0) {
+                    iterator.remove();
+                }
+            }
+            count -= n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回当前任务的快照，不反映之后的修改，通过迭代器删除时从队列中移除
+     */
+    @Override
+    @NonNull
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> tasks = new ArrayList<>();
+        lock.lock();
+        try {
+            for (TagQueue queue : queues.values()) {
+                tasks.addAll(queue.tasks);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Iterator<Runnable>() {
+            private int cursor;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < tasks.size();
+            }
+
+            @Override
+            public Runnable next() {
+                return tasks.get(cursor++);
+            }
+
+            @Override
+            public void remove() {
+                TagFairQueue.this.remove(tasks.get(cursor - 1));
+            }
+        };
+    }
+
+    /**
+     * 一个tag的排队任务，只在持有{@link #lock}时访问
+     */
+    private static final class TagQueue {
+
+        private final Object                  tag;
+        private final PriorityQueue<Runnable> tasks = new PriorityQueue<>(11, ORDER);
+        private       int                     running;
+        private       double                  pass;
+
+        TagQueue(Object tag, double pass) {
+            this.tag = tag;
+            this.pass = pass;
+        }
+    }
+}
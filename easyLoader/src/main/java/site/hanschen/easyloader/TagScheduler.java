@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个tag的调度参数，所有阶段的线程池共用
+ *
+ * <p>设置的tag会被强引用，恢复默认值时移除</p>
+ */
+class TagScheduler {
+
+    static final int DEFAULT_WEIGHT = 1;
+    static final int UNLIMITED      = 0;
+
+    private final ConcurrentHashMap<Object, Integer> weights     = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Object, Integer> maxRunnings = new ConcurrentHashMap<>();
+
+    /**
+     * @param weight 相同优先级的tag之间按权重分配出队的次数
+     */
+    void setWeight(Object tag, int weight) {
+        if (tag == null || weight <= 0) {
+            throw new IllegalArgumentException("tag == null || weight <= 0");
+        }
+        if (weight == DEFAULT_WEIGHT) {
+            weights.remove(tag);
+        } else {
+            weights.put(tag, weight);
+        }
+    }
+
+    int getWeight(Object tag) {
+        Integer weight = weights.get(tag);
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    /**
+     * @param maxRunning 每个线程池中同时执行的任务数上限，{@link #UNLIMITED}表示不限制
+     */
+    void setMaxRunning(Object tag, int maxRunning) {
+        if (tag == null || maxRunning < 0) {
+            throw new IllegalArgumentException("tag == null || maxRunning < 0");
+        }
+        if (maxRunning == UNLIMITED) {
+            maxRunnings.remove(tag);
+        } else {
+            maxRunnings.put(tag, maxRunning);
+        }
+    }
+
+    int getMaxRunning(Object tag) {
+        Integer maxRunning = maxRunnings.get(tag);
+        return maxRunning == null ? UNLIMITED : maxRunning;
+    }
+}
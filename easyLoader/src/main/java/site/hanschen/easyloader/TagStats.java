@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader;
+
+/**
+ * 某一时刻一个tag在线程池中的任务数，不会随任务变化
+ */
+public final class TagStats {
+
+    /**
+     * 没有设置tag的请求共用的tag
+     */
+    public static final Object UNTAGGED = new Object() {
+        @Override
+        public String toString() {
+            return "UNTAGGED";
+        }
+    };
+
+    private final int queued;
+    private final int running;
+
+    public TagStats(int queued, int running) {
+        this.queued = queued;
+        this.running = running;
+    }
+
+    /**
+     * @return 排队等待执行的任务数
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return 正在执行的任务数
+     */
+    public int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return 两份统计数据的合计，用于统计多个线程池
+     */
+    public TagStats plus(TagStats other) {
+        return new TagStats(queued + other.queued, running + other.running);
+    }
+
+    @Override
+    public String toString() {
+        return "TagStats{" +
+                "queued=" + queued +
+                ", running=" + running +
+                '}';
+    }
+}
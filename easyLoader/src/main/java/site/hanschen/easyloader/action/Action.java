@@ -52,7 +52,11 @@ public abstract class Action<T> {
     final String           key;
     final Object           tag;
     boolean willReplay;
-    boolean cancelled;
+    volatile boolean cancelled;
+    /**
+     * 通过{@link #setPriority(Priority)}修改后的优先级，为null时使用请求的优先级
+     */
+    volatile Priority priority;
 
     Action(EasyLoader loader,
            T target,
@@ -100,6 +104,13 @@ public abstract class Action<T> {
         return cancelled;
     }
 
+    /**
+     * @return 已经取消或者target已被回收，结果不再需要。可以在任意线程调用
+     */
+    public boolean isStale() {
+        return cancelled || (target != null && target.get() == null);
+    }
+
 
     public void setWillReplay(boolean willReplay) {
         this.willReplay = willReplay;
@@ -122,7 +133,12 @@ public abstract class Action<T> {
     }
 
     public Priority getPriority() {
-        return request.priority;
+        Priority priority = this.priority;
+        return priority != null ? priority : request.priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
     }
 
     public Object getTag() {
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.bean;
+
+import java.util.Locale;
+
+/**
+ * 磁盘缓存条目的HTTP缓存信息，包括校验信息(ETag/Last-Modified)和过期时间
+ *
+ * <p>过期之前直接使用缓存，过期之后或者请求不读取缓存时，带校验信息发送条件请求，
+ * 服务器返回304时继续使用缓存的数据</p>
+ */
+public class CacheMetadata {
+
+    /**
+     * 服务器没有给出过期时间，缓存一直有效
+     */
+    public static final long NO_EXPIRY = 0;
+
+    public static final CacheMetadata EMPTY = new CacheMetadata(null, null, NO_EXPIRY);
+
+    private final String etag;
+    private final String lastModified;
+    private final long   expiresAt;
+
+    /**
+     * @param etag         ETag响应头，可以为null
+     * @param lastModified Last-Modified响应头，可以为null
+     * @param expiresAt    过期时间(毫秒)，{@link #NO_EXPIRY}表示没有过期时间
+     */
+    public CacheMetadata(String etag, String lastModified, long expiresAt) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return 是否可以发送条件请求
+     */
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    public boolean isFresh(long now) {
+        return expiresAt == NO_EXPIRY || now < expiresAt;
+    }
+
+    /**
+     * 304响应可以不带校验信息，此时沿用之前保存的
+     *
+     * @return 用304响应更新后的缓存信息
+     */
+    public CacheMetadata refresh(CacheMetadata notModified) {
+        return new CacheMetadata(notModified.etag != null ? notModified.etag : etag,
+                                 notModified.lastModified != null ? notModified.lastModified : lastModified,
+                                 notModified.expiresAt);
+    }
+
+    /**
+     * 从响应头解析缓存信息，过期时间优先使用Cache-Control的max-age，其次是Expires，
+     * no-cache表示每次使用前都需要校验
+     *
+     * @param etag         ETag响应头，可以为null
+     * @param lastModified Last-Modified响应头，可以为null
+     * @param cacheControl Cache-Control响应头，可以为null
+     * @param expires      Expires响应头对应的时间(毫秒)，没有时为0
+     */
+    public static CacheMetadata fromHeaders(String etag, String lastModified, String cacheControl, long expires) {
+        long now = System.currentTimeMillis();
+        long expiresAt = NO_EXPIRY;
+        long maxAgeSeconds = -1;
+        boolean noCache = false;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        if (noCache) {
+            expiresAt = now;
+        } else if (maxAgeSeconds >= 0) {
+            expiresAt = now + maxAgeSeconds * 1000;
+        } else if (expires > 0) {
+            expiresAt = expires;
+        }
+        return new CacheMetadata(etag, lastModified, expiresAt);
+    }
+
+    /**
+     * 编码为三行文本：ETag、Last-Modified、过期时间，HTTP头中不会出现换行
+     */
+    public String encode() {
+        return (etag != null ? etag : "") + '\n' + (lastModified != null ? lastModified : "") + '\n' + expiresAt;
+    }
+
+    /**
+     * @return 解码后的缓存信息，{@code encoded}为空或格式错误时返回{@link #EMPTY}
+     */
+    public static CacheMetadata decode(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return EMPTY;
+        }
+        String[] lines = encoded.split("\n", -1);
+        if (lines.length != 3) {
+            return EMPTY;
+        }
+        try {
+            return new CacheMetadata(lines[0].isEmpty() ? null : lines[0],
+                                     lines[1].isEmpty() ? null : lines[1],
+                                     Long.parseLong(lines[2]));
+        } catch (NumberFormatException e) {
+            return EMPTY;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CacheMetadata{" +
+                "etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                ", expiresAt=" + expiresAt +
+                '}';
+    }
+}
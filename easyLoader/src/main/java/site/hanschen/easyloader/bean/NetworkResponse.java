@@ -19,15 +19,38 @@ import java.io.InputStream;
 
 public class NetworkResponse {
 
-    private final InputStream stream;
-    private final long        contentLength;
+    private final InputStream   stream;
+    private final long          contentLength;
+    private final CacheMetadata metadata;
+    private final boolean       notModified;
 
     public NetworkResponse(InputStream stream, long contentLength) {
+        this(stream, contentLength, CacheMetadata.EMPTY);
+    }
+
+    public NetworkResponse(InputStream stream, long contentLength, CacheMetadata metadata) {
         if (stream == null) {
             throw new IllegalArgumentException("Stream may not be null.");
         }
         this.stream = stream;
         this.contentLength = contentLength;
+        this.metadata = metadata != null ? metadata : CacheMetadata.EMPTY;
+        this.notModified = false;
+    }
+
+    private NetworkResponse(CacheMetadata metadata) {
+        this.stream = null;
+        this.contentLength = 0;
+        this.metadata = metadata != null ? metadata : CacheMetadata.EMPTY;
+        this.notModified = true;
+    }
+
+    /**
+     * @param metadata 304响应中的缓存信息
+     * @return 服务器返回304时的响应，没有数据
+     */
+    public static NetworkResponse notModified(CacheMetadata metadata) {
+        return new NetworkResponse(metadata);
     }
 
     public InputStream getInputStream() {
@@ -37,4 +60,18 @@ public class NetworkResponse {
     public long getContentLength() {
         return contentLength;
     }
+
+    /**
+     * @return 响应中的校验信息和过期时间
+     */
+    public CacheMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return 服务器是否返回304，此时{@link #getInputStream()}为null，应使用缓存的数据
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import android.graphics.Bitmap;
+
+/**
+ * 可复用Bitmap的缓存池，解码时通过{@link android.graphics.BitmapFactory.Options#inBitmap}复用其中的Bitmap，减少内存分配以及GC
+ */
+public interface BitmapPool {
+
+    /**
+     * 放入一个不再使用的Bitmap
+     *
+     * @return 是否被缓存池接收，未被接收的Bitmap由调用方自行处理
+     */
+    boolean put(Bitmap bitmap);
+
+    /**
+     * 取出一个可以用来解码指定尺寸和配置的Bitmap，取出后缓存池不再持有它
+     *
+     * @return 可复用的Bitmap，没有合适的Bitmap时返回null
+     */
+    Bitmap get(int width, int height, Bitmap.Config config);
+
+    long size();
+
+    long maxSize();
+
+    /**
+     * 淘汰最久未使用的Bitmap，直到缓存池大小不超过{@code fraction * maxSize()}
+     */
+    void trimToFraction(float fraction);
+
+    void clear();
+}
@@ -15,6 +15,8 @@
  */
 package site.hanschen.easyloader.cache;
 
+import site.hanschen.easyloader.cache.stats.CacheStats;
+
 public interface CacheManager<K, V> {
 
     V get(K key);
@@ -27,8 +29,20 @@ public interface CacheManager<K, V> {
 
     void resize(long maxSize);
 
+    /**
+     * 按LRU淘汰数据，直到缓存大小不超过{@code fraction * maxSize()}，不改变最大容量
+     *
+     * @param fraction 0~1之间，0表示清空
+     */
+    void trimToFraction(float fraction);
+
     long maxSize();
 
     void clear();
 
+    /**
+     * @return 当前的统计数据快照
+     */
+    CacheStats getStats();
+
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import site.hanschen.easyloader.util.BitmapUtils;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.KITKAT;
+
+/**
+ * 按LRU淘汰的{@link BitmapPool}
+ *
+ * <p>KITKAT及以上版本只要已分配的内存足够就可以复用，按(Config, 字节数)分组；
+ * 更早的版本要求宽高完全一致，按(Config, 宽, 高)分组</p>
+ */
+public class LruBitmapPool implements BitmapPool {
+
+    /**
+     * KITKAT以上取出的Bitmap最多允许比需要的内存大几倍，避免小图长期占用大块内存
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final LinkedHashMap<Key, ArrayDeque<Bitmap>>        groups        = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Bitmap.Config, TreeMap<Integer, Integer>> sizesByConfig = new HashMap<>();
+    private final long                                          maxSize;
+    private       long                                          size;
+
+    public LruBitmapPool(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null) {
+            throw new NullPointerException("bitmap == null");
+        }
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+        int bitmapSize = BitmapUtils.getBitmapBytes(bitmap);
+        if (bitmapSize > maxSize) {
+            return false;
+        }
+
+        Key key = keyOf(bitmap, bitmapSize);
+        ArrayDeque<Bitmap> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayDeque<>();
+            groups.put(key, group);
+        }
+        group.push(bitmap);
+        if (SDK_INT >= KITKAT) {
+            incrementSize(key.config, key.size);
+        }
+        size += bitmapSize;
+        trimToSize(maxSize);
+        return true;
+    }
+
+    @Override
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0 || config == null) {
+            return null;
+        }
+
+        Key key;
+        if (SDK_INT >= KITKAT) {
+            int required = width * height * BitmapUtils.getBytesPerPixel(config);
+            TreeMap<Integer, Integer> sizes = sizesByConfig.get(config);
+            Integer candidate = sizes == null ? null : sizes.ceilingKey(required);
+            if (candidate == null || candidate > required * MAX_SIZE_MULTIPLE) {
+                return null;
+            }
+            key = new Key(config, candidate, 0, 0);
+        } else {
+            key = new Key(config, 0, width, height);
+        }
+
+        ArrayDeque<Bitmap> group = groups.get(key);
+        if (group == null) {
+            return null;
+        }
+        Bitmap bitmap = group.pop();
+        if (group.isEmpty()) {
+            groups.remove(key);
+        }
+        if (SDK_INT >= KITKAT) {
+            decrementSize(key.config, key.size);
+        }
+        size -= BitmapUtils.getBitmapBytes(bitmap);
+
+        if (SDK_INT >= KITKAT) {
+            reconfigure(bitmap, width, height, config);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized void trimToFraction(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
+        trimToSize((long) (maxSize * fraction));
+    }
+
+    @Override
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<Key, ArrayDeque<Bitmap>>> iterator = groups.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<Key, ArrayDeque<Bitmap>> eldest = iterator.next();
+            Key key = eldest.getKey();
+            ArrayDeque<Bitmap> group = eldest.getValue();
+            while (size > maxSize && !group.isEmpty()) {
+                Bitmap bitmap = group.removeLast();
+                size -= BitmapUtils.getBitmapBytes(bitmap);
+                if (SDK_INT >= KITKAT) {
+                    decrementSize(key.config, key.size);
+                }
+                bitmap.recycle();
+            }
+            if (group.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void incrementSize(Bitmap.Config config, int bitmapSize) {
+        TreeMap<Integer, Integer> sizes = sizesByConfig.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            sizesByConfig.put(config, sizes);
+        }
+        Integer current = sizes.get(bitmapSize);
+        sizes.put(bitmapSize, current == null ? 1 : current + 1);
+    }
+
+    private void decrementSize(Bitmap.Config config, int bitmapSize) {
+        TreeMap<Integer, Integer> sizes = sizesByConfig.get(config);
+        Integer current = sizes == null ? null : sizes.get(bitmapSize);
+        if (current == null) {
+            throw new IllegalStateException("Tried to decrement empty size, size: " + bitmapSize + ", config: " + config);
+        }
+        if (current == 1) {
+            sizes.remove(bitmapSize);
+        } else {
+            sizes.put(bitmapSize, current - 1);
+        }
+    }
+
+    private static Key keyOf(Bitmap bitmap, int bitmapSize) {
+        if (SDK_INT >= KITKAT) {
+            return new Key(bitmap.getConfig(), bitmapSize, 0, 0);
+        }
+        return new Key(bitmap.getConfig(), 0, bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    @TargetApi(KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+
+    private static final class Key {
+        final Bitmap.Config config;
+        final int           size;
+        final int           width;
+        final int           height;
+
+        Key(Bitmap.Config config, int size, int width, int height) {
+            this.config = config;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return size == other.size && width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = config.hashCode();
+            result = 31 * result + size;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+}
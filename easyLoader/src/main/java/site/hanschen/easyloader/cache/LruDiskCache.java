@@ -15,24 +15,54 @@
  */
 package site.hanschen.easyloader.cache;
 
+import site.hanschen.easyloader.bean.CacheMetadata;
 import site.hanschen.easyloader.cache.diskcache.DiskLruCache;
+import site.hanschen.easyloader.cache.stats.CacheStats;
+import site.hanschen.easyloader.cache.stats.StatsRecorder;
 import site.hanschen.easyloader.log.EasyLoaderLog;
+import site.hanschen.easyloader.util.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class LruDiskCache<V> implements CacheManager<String, V> {
+/**
+ * 基于{@link DiskLruCache}的磁盘缓存
+ *
+ * <p>打开{@link DiskLruCache}需要读取整个journal，调用{@link #warmUp()}可以提前在后台线程打开，
+ * 打开完成之前{@link #get(String)}最多等待{@link #OPEN_TIMEOUT_MILLIS}毫秒，超时按未命中处理，
+ * 不会让所有工作线程排队等待同一把锁</p>
+ */
+public class LruDiskCache<V> implements MetadataCacheManager<String, V> {
 
     private static final String TAG = "LruDiskCache";
 
-    private static final int                  VALUE_COUNT = 1;
-    private final        DiskCacheWriteLocker writeLocker = new DiskCacheWriteLocker();
+    /**
+     * 磁盘缓存还没打开时，读取操作最多等待的时间
+     */
+    public static final long OPEN_TIMEOUT_MILLIS = 50;
+
+    /**
+     * 每个条目保存两个文件：数据和{@link CacheMetadata}
+     */
+    private static final int                  VALUE_COUNT    = 2;
+    private static final int                  VALUE_DATA     = 0;
+    private static final int                  VALUE_METADATA = 1;
+    private final        DiskCacheWriteLocker writeLocker    = new DiskCacheWriteLocker();
+    private final        StatsRecorder        stats          = new StatsRecorder();
 
-    private final File             directory;
-    private final long             maxSize;
-    private final int              appVersion;
-    private       DiskLruCache     diskLruCache;
-    private       FileConverter<V> converter;
+    private final    File                                     directory;
+    private volatile long                                     maxSize;
+    private final    int                                      appVersion;
+    private final    AtomicReference<FutureTask<DiskLruCache>> openTask = new AtomicReference<>();
+    private          FileConverter<V>                         converter;
+    private volatile File                                     legacyDirectory;
 
     public interface FileConverter<V> {
 
@@ -51,34 +81,143 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
         this.converter = converter;
     }
 
-    private synchronized DiskLruCache getDiskCache() throws IOException {
-        if (diskLruCache == null) {
-            diskLruCache = DiskLruCache.open(directory, appVersion, VALUE_COUNT, maxSize);
+    /**
+     * 打开之前把{@code legacyDirectory}下的缓存文件(不包括子目录)移到这个缓存的目录中，
+     * 这个缓存的目录已经存在时只删除这些文件。和打开一样在{@link #warmUp()}的后台线程中执行
+     *
+     * @param legacyDirectory 以前版本直接保存缓存文件的目录
+     */
+    public void migrateFrom(File legacyDirectory) {
+        this.legacyDirectory = legacyDirectory;
+    }
+
+    /**
+     * 在后台线程打开磁盘缓存并读取索引，已经开始打开时不做任何事
+     */
+    public void warmUp() {
+        FutureTask<DiskLruCache> task = newOpenTask();
+        if (task != null) {
+            new Utils.ThreadFactory().newThread(task).start();
+        }
+    }
+
+    /**
+     * @return 新建的打开任务，已经有其他线程开始打开时返回null
+     */
+    private FutureTask<DiskLruCache> newOpenTask() {
+        if (openTask.get() != null) {
+            return null;
+        }
+        FutureTask<DiskLruCache> task = new FutureTask<>(new Callable<DiskLruCache>() {
+            @Override
+            public DiskLruCache call() throws Exception {
+                File legacy = legacyDirectory;
+                if (legacy != null) {
+                    migrate(legacy, directory);
+                    legacyDirectory = null;
+                }
+                return DiskLruCache.open(directory, appVersion, VALUE_COUNT, maxSize);
+            }
+        });
+        return openTask.compareAndSet(null, task) ? task : null;
+    }
+
+    /**
+     * 等待磁盘缓存打开，没有调用{@link #warmUp()}时在当前线程打开
+     */
+    private DiskLruCache getDiskCache() throws IOException {
+        DiskLruCache diskCache = getDiskCache(-1);
+        if (diskCache == null) {
+            throw new InterruptedIOException("Interrupted while opening disk cache");
+        }
+        return diskCache;
+    }
+
+    /**
+     * @param timeoutMillis 最多等待的时间，小于0时一直等待
+     * @return 磁盘缓存，等待超时或被中断时返回null
+     */
+    private DiskLruCache getDiskCache(long timeoutMillis) throws IOException {
+        FutureTask<DiskLruCache> created = newOpenTask();
+        if (created != null) {
+            created.run();
+        }
+        FutureTask<DiskLruCache> task = openTask.get();
+        if (task == null) {
+            // 刚被clear()重置，重新打开
+            return getDiskCache(timeoutMillis);
+        }
+        try {
+            return timeoutMillis < 0 ? task.get() : task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // 打开失败，下次使用时重试
+            openTask.compareAndSet(task, null);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to open disk cache: " + cause);
+        }
+    }
+
+    /**
+     * @return 已经打开的磁盘缓存，还没打开完成时返回null，不会阻塞
+     */
+    private DiskLruCache peekDiskCache() throws IOException {
+        FutureTask<DiskLruCache> task = openTask.get();
+        if (task == null || !task.isDone()) {
+            return null;
         }
-        return diskLruCache;
+        return getDiskCache(0);
     }
 
     @Override
     public V get(String key) {
+        long start = System.nanoTime();
+        V result = null;
         try {
-            final DiskLruCache.Value value = getDiskCache().get(key);
+            DiskLruCache diskCache = getDiskCache(OPEN_TIMEOUT_MILLIS);
+            final DiskLruCache.Value value = diskCache == null ? null : diskCache.get(key);
             if (value != null) {
-                return converter.readFrom(value.getFile(0));
+                result = converter.readFrom(value.getFile(VALUE_DATA));
             }
         } catch (IOException e) {
             EasyLoaderLog.w(TAG, "Unable to get from disk cache");
         }
-        return null;
+        if (result != null) {
+            stats.recordHit();
+            stats.recordReadNanos(System.nanoTime() - start);
+        } else {
+            stats.recordMiss();
+        }
+        return result;
     }
 
     @Override
     public void put(String key, V value) {
+        put(key, value, CacheMetadata.EMPTY, false);
+    }
+
+    @Override
+    public void put(String key, V value, CacheMetadata metadata) {
+        put(key, value, metadata, true);
+    }
+
+    /**
+     * @param replace 条目已经存在时是否替换
+     */
+    private void put(String key, V value, CacheMetadata metadata, boolean replace) {
         writeLocker.acquire(key);
         try {
             try {
                 DiskLruCache diskCache = getDiskCache();
                 DiskLruCache.Value current = diskCache.get(key);
-                if (current != null) {
+                if (current != null && !replace) {
                     return;
                 }
 
@@ -87,9 +226,13 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
                     throw new IllegalStateException("Had two simultaneous puts for: " + key);
                 }
                 try {
-                    File file = editor.getFile(0);
+                    long start = System.nanoTime();
+                    File file = editor.getFile(VALUE_DATA);
                     if (converter.writeTo(value, file)) {
+                        editor.set(VALUE_METADATA, metadata.encode());
                         editor.commit();
+                        stats.recordPut();
+                        stats.recordWriteNanos(System.nanoTime() - start);
                     }
                 } finally {
                     editor.abortUnlessCommitted();
@@ -102,6 +245,43 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
         }
     }
 
+    @Override
+    public CacheMetadata getMetadata(String key) {
+        try {
+            DiskLruCache diskCache = getDiskCache(OPEN_TIMEOUT_MILLIS);
+            DiskLruCache.Value value = diskCache == null ? null : diskCache.get(key);
+            if (value != null) {
+                return CacheMetadata.decode(value.getString(VALUE_METADATA));
+            }
+        } catch (IOException e) {
+            EasyLoaderLog.w(TAG, "Unable to get metadata from disk cache: " + e);
+        }
+        return null;
+    }
+
+    @Override
+    public void updateMetadata(String key, CacheMetadata metadata) {
+        writeLocker.acquire(key);
+        try {
+            DiskLruCache.Value current = getDiskCache().get(key);
+            DiskLruCache.Editor editor = current == null ? null : current.edit();
+            if (editor == null) {
+                // 条目不存在或者已经被修改
+                return;
+            }
+            try {
+                editor.set(VALUE_METADATA, metadata.encode());
+                editor.commit();
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        } catch (IOException e) {
+            EasyLoaderLog.w(TAG, "Unable to update metadata in disk cache: " + e);
+        } finally {
+            writeLocker.release(key);
+        }
+    }
+
     @Override
     public V remove(String key) {
         try {
@@ -116,7 +296,8 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
     @Override
     public long size() {
         try {
-            return getDiskCache().size();
+            DiskLruCache diskCache = peekDiskCache();
+            return diskCache == null ? 0 : diskCache.size();
         } catch (IOException e) {
             EasyLoaderLog.w(TAG, "Unable to clear disk cache: " + e);
         }
@@ -126,6 +307,7 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
 
     @Override
     public void resize(long maxSize) {
+        this.maxSize = maxSize;
         try {
             getDiskCache().setMaxSize(maxSize);
         } catch (IOException e) {
@@ -134,14 +316,24 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
     }
 
     @Override
-    public long maxSize() {
+    public void trimToFraction(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
         try {
-            return getDiskCache().getMaxSize();
+            // 还没打开时没有需要释放的内容
+            DiskLruCache diskCache = peekDiskCache();
+            if (diskCache != null) {
+                diskCache.trimToSize((long) (diskCache.getMaxSize() * fraction));
+            }
         } catch (IOException e) {
-            EasyLoaderLog.w(TAG, "Unable to get max size: " + e);
+            EasyLoaderLog.w(TAG, "Unable to trim disk cache: " + e);
         }
+    }
 
-        return 0;
+    @Override
+    public long maxSize() {
+        return maxSize;
     }
 
     @Override
@@ -154,7 +346,51 @@ public class LruDiskCache<V> implements CacheManager<String, V> {
         }
     }
 
-    private synchronized void resetDiskCache() {
-        diskLruCache = null;
+    @Override
+    public CacheStats getStats() {
+        long size = 0;
+        long maxSize = this.maxSize;
+        long evictionCount = 0;
+        try {
+            // 统计数据不值得等待磁盘缓存打开
+            DiskLruCache diskCache = peekDiskCache();
+            if (diskCache != null) {
+                size = diskCache.size();
+                evictionCount = diskCache.getEvictionCount();
+            }
+        } catch (IOException e) {
+            EasyLoaderLog.w(TAG, "Unable to get disk cache stats: " + e);
+        }
+        CacheStats snapshot = stats.snapshot(size, maxSize);
+        // 淘汰发生在DiskLruCache内部，从DiskLruCache中读取
+        return new CacheStats(snapshot.getHitCount(),
+                              snapshot.getMissCount(),
+                              snapshot.getPutCount(),
+                              evictionCount,
+                              size,
+                              maxSize,
+                              snapshot.getReadLatency(),
+                              snapshot.getWriteLatency());
+    }
+
+    private static void migrate(File from, File to) {
+        File[] files = from.listFiles();
+        if (files == null) {
+            return;
+        }
+        boolean move = !to.exists() && to.mkdirs();
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            if (!move || !file.renameTo(new File(to, file.getName()))) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private void resetDiskCache() {
+        openTask.set(null);
     }
 }
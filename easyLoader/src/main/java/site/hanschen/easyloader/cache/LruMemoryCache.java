@@ -18,18 +18,23 @@ package site.hanschen.easyloader.cache;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import site.hanschen.easyloader.cache.stats.CacheStats;
+import site.hanschen.easyloader.cache.stats.StatsRecorder;
+
 public class LruMemoryCache<K, V> implements CacheManager<K, V> {
 
-    private       long                maxSize;
-    private       int                 hitCount;
-    private       int                 missCount;
-    private       int                 putCount;
-    private       int                 evictionCount;
-    private       long                size;
-    private final LinkedHashMap<K, V> map;
-    private final SizeCalculator<V>   calculator;
+    private       long                   maxSize;
+    private       long                   size;
+    private final StatsRecorder          stats = new StatsRecorder();
+    private final LinkedHashMap<K, V>    map;
+    private final SizeCalculator<V>      calculator;
+    private final EvictionListener<K, V> listener;
 
     public LruMemoryCache(long maxSize, SizeCalculator<V> calculator) {
+        this(maxSize, calculator, null);
+    }
+
+    public LruMemoryCache(long maxSize, SizeCalculator<V> calculator, EvictionListener<K, V> listener) {
         if (maxSize <= 0 || calculator == null) {
             throw new IllegalArgumentException("maxSize <= 0 || calculator == null");
         }
@@ -37,6 +42,7 @@ public class LruMemoryCache<K, V> implements CacheManager<K, V> {
         //attention, accessOrder must be true
         this.map = new LinkedHashMap<>(0, 0.75f, true);
         this.calculator = calculator;
+        this.listener = listener;
     }
 
     @Override
@@ -49,11 +55,11 @@ public class LruMemoryCache<K, V> implements CacheManager<K, V> {
         synchronized (this) {
             mapValue = map.get(key);
             if (mapValue != null) {
-                hitCount++;
+                stats.recordHit();
                 return mapValue;
             }
-            missCount++;
         }
+        stats.recordMiss();
 
         return null;
     }
@@ -69,15 +75,20 @@ public class LruMemoryCache<K, V> implements CacheManager<K, V> {
             return;
         }
 
+        V previous;
+        stats.recordPut();
         synchronized (this) {
-            putCount++;
             size += addedSize;
-            V previous = map.put(key, value);
+            previous = map.put(key, value);
             if (previous != null) {
                 size -= calculator.getSizeOf(previous);
             }
         }
 
+        if (previous != null && previous != value && listener != null) {
+            listener.onEvicted(key, previous);
+        }
+
         trimToSize(maxSize);
     }
 
@@ -114,6 +125,18 @@ public class LruMemoryCache<K, V> implements CacheManager<K, V> {
         trimToSize(maxSize);
     }
 
+    @Override
+    public void trimToFraction(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
+        long targetSize;
+        synchronized (this) {
+            targetSize = (long) (maxSize * fraction);
+        }
+        trimToSize(fraction == 0 ? -1 : targetSize);
+    }
+
     @Override
     public long maxSize() {
         return maxSize;
@@ -124,6 +147,11 @@ public class LruMemoryCache<K, V> implements CacheManager<K, V> {
         trimToSize(-1); // -1 will evict 0-sized elements
     }
 
+    @Override
+    public CacheStats getStats() {
+        return stats.snapshot(size(), maxSize());
+    }
+
     private void trimToSize(long maxSize) {
         while (true) {
             K key;
@@ -142,7 +170,11 @@ public class LruMemoryCache<K, V> implements CacheManager<K, V> {
                 value = toEvict.getValue();
                 map.remove(key);
                 size -= calculator.getSizeOf(value);
-                evictionCount++;
+            }
+            stats.recordEviction();
+
+            if (listener != null) {
+                listener.onEvicted(key, value);
             }
         }
     }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import android.graphics.Bitmap;
+
+/**
+ * 创建内存缓存，由EasyLoader传入淘汰监听器，被淘汰的Bitmap可以放回{@link BitmapPool}复用
+ *
+ * <p>直接传入的内存缓存无法得到这个监听器，淘汰的Bitmap只能由GC回收</p>
+ */
+public interface MemoryCacheFactory {
+
+    /**
+     * 分段的LRU，默认使用
+     */
+    MemoryCacheFactory SEGMENTED_LRU = new MemoryCacheFactory() {
+        @Override
+        public CacheManager<String, Bitmap> create(long maxSize,
+                                                   SizeCalculator<Bitmap> calculator,
+                                                   EvictionListener<String, Bitmap> listener) {
+            return new SegmentedLruMemoryCache<>(maxSize, calculator, listener);
+        }
+    };
+
+    /**
+     * 基于访问频率准入的{@link TinyLfuMemoryCache}
+     */
+    MemoryCacheFactory TINY_LFU = new MemoryCacheFactory() {
+        @Override
+        public CacheManager<String, Bitmap> create(long maxSize,
+                                                   SizeCalculator<Bitmap> calculator,
+                                                   EvictionListener<String, Bitmap> listener) {
+            return new TinyLfuMemoryCache<>(maxSize, calculator, listener);
+        }
+    };
+
+    /**
+     * @param maxSize    缓存的最大字节数
+     * @param calculator 计算Bitmap占用的字节数
+     * @param listener   值被淘汰或者被替换时回调，必须传给创建的缓存
+     */
+    CacheManager<String, Bitmap> create(long maxSize, SizeCalculator<Bitmap> calculator, EvictionListener<String, Bitmap> listener);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import site.hanschen.easyloader.bean.CacheMetadata;
+
+/**
+ * 同时保存{@link CacheMetadata}的缓存，用于HTTP条件请求
+ */
+public interface MetadataCacheManager<K, V> extends CacheManager<K, V> {
+
+    /**
+     * @return 缓存条目的元数据，条目不存在时返回null，没有保存元数据时返回{@link CacheMetadata#EMPTY}
+     */
+    CacheMetadata getMetadata(K key);
+
+    /**
+     * 写入值和元数据，条目已经存在时替换
+     */
+    void put(K key, V value, CacheMetadata metadata);
+
+    /**
+     * 只更新元数据，比如服务器返回304之后刷新过期时间，条目不存在时忽略
+     */
+    void updateMetadata(K key, CacheMetadata metadata);
+
+}
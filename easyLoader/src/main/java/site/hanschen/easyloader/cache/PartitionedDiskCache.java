@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import site.hanschen.easyloader.bean.CacheMetadata;
+import site.hanschen.easyloader.cache.stats.CacheStats;
+
+/**
+ * 按名称分区的磁盘缓存，每个分区有独立的容量和淘汰，避免少量大图把大量缩略图挤出缓存
+ *
+ * <p>请求通过{@link #getPartition(String, int, int)}选择分区：优先使用请求指定的分区，
+ * 否则目标尺寸不超过{@link #getThumbnailMaxSize()}的请求使用{@link #PARTITION_THUMBNAIL}，
+ * 其余使用{@link #PARTITION_FULL}。直接调用{@link CacheManager}的方法时作用于所有分区，
+ * 新值写入默认分区</p>
+ */
+public class PartitionedDiskCache<V> implements MetadataCacheManager<String, V> {
+
+    public static final String PARTITION_THUMBNAIL = "thumbnail";
+    public static final String PARTITION_FULL      = "full";
+
+    private final Map<String, CacheManager<String, V>> partitions;
+    private final CacheManager<String, V>              defaultPartition;
+    private final int                                  thumbnailMaxSize;
+
+    /**
+     * @param partitions       分区名称到缓存的映射，查找时按迭代顺序进行
+     * @param defaultPartition 没有匹配的分区时使用的分区名称
+     * @param thumbnailMaxSize 宽高都不超过这个值的请求视为缩略图
+     */
+    public PartitionedDiskCache(Map<String, CacheManager<String, V>> partitions, String defaultPartition, int thumbnailMaxSize) {
+        if (partitions == null || partitions.isEmpty() || !partitions.containsKey(defaultPartition) || thumbnailMaxSize < 0) {
+            throw new IllegalArgumentException("partitions is empty || defaultPartition not found || thumbnailMaxSize < 0");
+        }
+        this.partitions = Collections.unmodifiableMap(new LinkedHashMap<>(partitions));
+        this.defaultPartition = partitions.get(defaultPartition);
+        this.thumbnailMaxSize = thumbnailMaxSize;
+    }
+
+    /**
+     * @return 名称为{@code name}的分区，不存在时返回默认分区
+     */
+    public CacheManager<String, V> getPartition(String name) {
+        CacheManager<String, V> partition = name == null ? null : partitions.get(name);
+        return partition == null ? defaultPartition : partition;
+    }
+
+    /**
+     * 为请求选择分区
+     *
+     * @param hint         请求指定的分区，可以为null
+     * @param targetWidth  请求的目标宽度，0表示未指定
+     * @param targetHeight 请求的目标高度，0表示未指定
+     */
+    public CacheManager<String, V> getPartition(String hint, int targetWidth, int targetHeight) {
+        if (hint != null && partitions.containsKey(hint)) {
+            return partitions.get(hint);
+        }
+        boolean hasSize = targetWidth > 0 || targetHeight > 0;
+        if (hasSize && targetWidth <= thumbnailMaxSize && targetHeight <= thumbnailMaxSize) {
+            return getPartition(PARTITION_THUMBNAIL);
+        }
+        return getPartition(PARTITION_FULL);
+    }
+
+    public Map<String, CacheManager<String, V>> getPartitions() {
+        return partitions;
+    }
+
+    public int getThumbnailMaxSize() {
+        return thumbnailMaxSize;
+    }
+
+    /**
+     * @return 每个分区的统计数据，用于分别调整各分区的容量
+     */
+    public Map<String, CacheStats> getPartitionStats() {
+        Map<String, CacheStats> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, CacheManager<String, V>> entry : partitions.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 提前在后台打开所有分区
+     */
+    public void warmUp() {
+        for (CacheManager<String, V> partition : partitions.values()) {
+            if (partition instanceof LruDiskCache) {
+                ((LruDiskCache<?>) partition).warmUp();
+            }
+        }
+    }
+
+    @Override
+    public V get(String key) {
+        for (CacheManager<String, V> partition : partitions.values()) {
+            V value = partition.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, V value) {
+        defaultPartition.put(key, value);
+    }
+
+    @Override
+    public CacheMetadata getMetadata(String key) {
+        for (CacheManager<String, V> partition : partitions.values()) {
+            if (partition instanceof MetadataCacheManager) {
+                CacheMetadata metadata = ((MetadataCacheManager<String, V>) partition).getMetadata(key);
+                if (metadata != null) {
+                    return metadata;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, V value, CacheMetadata metadata) {
+        if (defaultPartition instanceof MetadataCacheManager) {
+            ((MetadataCacheManager<String, V>) defaultPartition).put(key, value, metadata);
+        } else {
+            defaultPartition.put(key, value);
+        }
+    }
+
+    @Override
+    public void updateMetadata(String key, CacheMetadata metadata) {
+        for (CacheManager<String, V> partition : partitions.values()) {
+            if (partition instanceof MetadataCacheManager) {
+                ((MetadataCacheManager<String, V>) partition).updateMetadata(key, metadata);
+            }
+        }
+    }
+
+    @Override
+    public V remove(String key) {
+        V result = null;
+        for (CacheManager<String, V> partition : partitions.values()) {
+            V removed = partition.remove(key);
+            if (result == null) {
+                result = removed;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (CacheManager<String, V> partition : partitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    /**
+     * 按各分区当前容量的比例调整
+     */
+    @Override
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        long total = maxSize();
+        for (CacheManager<String, V> partition : partitions.values()) {
+            long partitionSize = total == 0 ? maxSize / partitions.size() : (long) ((double) maxSize * partition.maxSize() / total);
+            partition.resize(Math.max(1, partitionSize));
+        }
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        for (CacheManager<String, V> partition : partitions.values()) {
+            partition.trimToFraction(fraction);
+        }
+    }
+
+    @Override
+    public long maxSize() {
+        long maxSize = 0;
+        for (CacheManager<String, V> partition : partitions.values()) {
+            maxSize += partition.maxSize();
+        }
+        return maxSize;
+    }
+
+    @Override
+    public void clear() {
+        for (CacheManager<String, V> partition : partitions.values()) {
+            partition.clear();
+        }
+    }
+
+    /**
+     * @return 所有分区合计的统计数据
+     */
+    @Override
+    public CacheStats getStats() {
+        CacheStats result = null;
+        for (CacheManager<String, V> partition : partitions.values()) {
+            CacheStats stats = partition.getStats();
+            result = result == null ? stats : result.plus(stats);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import site.hanschen.easyloader.cache.stats.CacheStats;
+import site.hanschen.easyloader.cache.stats.StatsRecorder;
+
+/**
+ * 分段加锁的LRU内存缓存，key按hash分配到N个独立加锁的段中，所有段共用总容量
+ *
+ * <p>每个段用{@link ConcurrentHashMap}保存数据，读操作不需要获取锁，只有在锁空闲时才顺便更新LRU顺序，
+ * 因此主线程的{@link #get(Object)}不会被Dispatcher线程的{@link #put(Object, Object)}阻塞。
+ * 超出总容量时轮流淘汰各个段中最久未使用的值，每次只持有一个段的锁，淘汰顺序是近似的LRU</p>
+ */
+public class SegmentedLruMemoryCache<K, V> implements CacheManager<K, V> {
+
+    private static final int MAX_SEGMENT_COUNT = 16;
+
+    private final Segment<K, V>[]        segments;
+    private final int                    segmentMask;
+    private final EvictionListener<K, V> listener;
+    private final StatsRecorder          stats;
+    private final AtomicLong             totalSize;
+    private final AtomicInteger          evictCursor;
+    private volatile long                maxSize;
+
+    public SegmentedLruMemoryCache(long maxSize, SizeCalculator<V> calculator) {
+        this(maxSize, defaultSegmentCount(), calculator, null);
+    }
+
+    public SegmentedLruMemoryCache(long maxSize, SizeCalculator<V> calculator, EvictionListener<K, V> listener) {
+        this(maxSize, defaultSegmentCount(), calculator, listener);
+    }
+
+    @SuppressWarnings("unchecked")
+    public SegmentedLruMemoryCache(long maxSize,
+                                   int segmentCount,
+                                   SizeCalculator<V> calculator,
+                                   EvictionListener<K, V> listener) {
+        if (maxSize <= 0 || segmentCount <= 0 || calculator == null) {
+            throw new IllegalArgumentException("maxSize <= 0 || segmentCount <= 0 || calculator == null");
+        }
+        int count = 1;
+        while (count < segmentCount && count < MAX_SEGMENT_COUNT) {
+            count <<= 1;
+        }
+        this.maxSize = maxSize;
+        this.segmentMask = count - 1;
+        this.segments = new Segment[count];
+        this.listener = listener;
+        this.stats = new StatsRecorder();
+        this.totalSize = new AtomicLong();
+        this.evictCursor = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(calculator, stats, totalSize);
+        }
+    }
+
+    /**
+     * 段的数量与CPU核数相同，向上取2的幂
+     */
+    private static int defaultSegmentCount() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        // spread the higher bits, same as HashMap
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return segmentFor(key).get(key);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(0);
+        segmentFor(key).put(key, value, maxSize, evicted);
+        // 刚放入的值不参与淘汰，超过总容量的值在段中已被拒绝
+        trimToSize(maxSize, key, evicted);
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return segmentFor(key).remove(key);
+    }
+
+    @Override
+    public long size() {
+        return totalSize.get();
+    }
+
+    @Override
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize, null, new ArrayList<Map.Entry<K, V>>(0));
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
+        if (fraction == 0) {
+            clear();
+            return;
+        }
+        trimToSize((long) (maxSize * fraction), null, new ArrayList<Map.Entry<K, V>>(0));
+    }
+
+    @Override
+    public long maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void clear() {
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(0);
+        for (Segment<K, V> segment : segments) {
+            segment.evictAll(evicted);
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return stats.snapshot(size(), maxSize);
+    }
+
+    /**
+     * 从各个段轮流淘汰最久未使用的值，直到总大小不超过{@code targetSize}
+     *
+     * @param except 不淘汰的key，为null时全部可以淘汰
+     */
+    private void trimToSize(long targetSize, K except, List<Map.Entry<K, V>> evicted) {
+        while (totalSize.get() > targetSize) {
+            boolean any = false;
+            for (int i = 0; i < segments.length && totalSize.get() > targetSize; i++) {
+                Segment<K, V> segment = segments[evictCursor.getAndIncrement() & segmentMask];
+                if (segment.evictEldest(except, evicted)) {
+                    any = true;
+                }
+            }
+            if (!any) {
+                break;
+            }
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * 在锁外回调，避免listener中的耗时操作阻塞其他线程
+     */
+    private void notifyEvicted(List<Map.Entry<K, V>> evicted) {
+        if (listener == null) {
+            return;
+        }
+        for (int i = 0, n = evicted.size(); i < n; i++) {
+            Map.Entry<K, V> entry = evicted.get(i);
+            listener.onEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 单个分段，{@link #values}用于无锁读取，{@link #order}记录访问顺序，只在持有{@link #lock}时修改
+     */
+    private static final class Segment<K, V> {
+
+        private final ReentrantLock             lock   = new ReentrantLock();
+        private final ConcurrentHashMap<K, V>   values = new ConcurrentHashMap<>();
+        private final LinkedHashMap<K, Boolean> order  = new LinkedHashMap<>(0, 0.75f, true);
+        private final SizeCalculator<V>         calculator;
+        private final StatsRecorder             stats;
+        /**
+         * 所有段合计的大小
+         */
+        private final AtomicLong                totalSize;
+        private       long                      size;
+
+        Segment(SizeCalculator<V> calculator, StatsRecorder stats, AtomicLong totalSize) {
+            this.calculator = calculator;
+            this.stats = stats;
+            this.totalSize = totalSize;
+        }
+
+        V get(K key) {
+            V value = values.get(key);
+            if (value == null) {
+                stats.recordMiss();
+                return null;
+            }
+            stats.recordHit();
+            if (lock.tryLock()) {
+                // 锁被占用时直接跳过，LRU顺序允许有少量误差
+                try {
+                    order.get(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return value;
+        }
+
+        /**
+         * @param maxSize 总容量，超过总容量的值不缓存，同一个key之前的值被淘汰
+         */
+        void put(K key, V value, long maxSize, List<Map.Entry<K, V>> evicted) {
+            stats.recordPut();
+            int addedSize = calculator.getSizeOf(value);
+            lock.lock();
+            try {
+                V previous;
+                if (addedSize > maxSize) {
+                    previous = removeLocked(key);
+                } else {
+                    previous = values.put(key, value);
+                    order.put(key, Boolean.TRUE);
+                    addSize(addedSize);
+                    if (previous != null) {
+                        addSize(-calculator.getSizeOf(previous));
+                    }
+                }
+                if (previous != null && previous != value) {
+                    evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, previous));
+                }
+                checkSize();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        V remove(K key) {
+            lock.lock();
+            try {
+                return removeLocked(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private V removeLocked(K key) {
+            V previous = values.remove(key);
+            if (previous != null) {
+                order.remove(key);
+                addSize(-calculator.getSizeOf(previous));
+            }
+            return previous;
+        }
+
+        /**
+         * 淘汰最久未使用的一个值
+         *
+         * @param except 不淘汰的key
+         * @return 是否淘汰了值
+         */
+        boolean evictEldest(K except, List<Map.Entry<K, V>> evicted) {
+            lock.lock();
+            try {
+                for (K key : order.keySet()) {
+                    if (key.equals(except)) {
+                        continue;
+                    }
+                    V value = removeLocked(key);
+                    if (value != null) {
+                        evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+                        stats.recordEviction();
+                    }
+                    checkSize();
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void evictAll(List<Map.Entry<K, V>> evicted) {
+            lock.lock();
+            try {
+                for (Map.Entry<K, V> entry : values.entrySet()) {
+                    evicted.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                    stats.recordEviction();
+                }
+                values.clear();
+                order.clear();
+                addSize(-size);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void addSize(long delta) {
+            size += delta;
+            totalSize.addAndGet(delta);
+        }
+
+        private void checkSize() {
+            if (size < 0 || (order.isEmpty() && size != 0)) {
+                throw new IllegalStateException(getClass().getName() + ".sizeOf() is reporting inconsistent results!");
+            }
+        }
+    }
+}
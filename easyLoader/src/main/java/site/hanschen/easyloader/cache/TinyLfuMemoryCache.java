@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import site.hanschen.easyloader.cache.stats.CacheStats;
+import site.hanschen.easyloader.cache.stats.StatsRecorder;
+
+/**
+ * 基于访问频率准入的内存缓存(W-TinyLFU)
+ *
+ * <p>新的值先进入占总容量{@link #WINDOW_PERCENT}%的窗口LRU，从窗口淘汰后才尝试进入主LRU：
+ * 只有当它的访问频率高于主LRU中将被淘汰的值时才会被接收，否则直接丢弃。
+ * 访问频率由{@link FrequencySketch}估算，因此一次性浏览大量图片不会把经常显示的图片挤出缓存</p>
+ */
+public class TinyLfuMemoryCache<K, V> implements CacheManager<K, V> {
+
+    private static final int WINDOW_PERCENT       = 20;
+    /**
+     * 估算条目数时假定的平均大小，用于确定{@link FrequencySketch}的容量
+     */
+    private static final int AVERAGE_ENTRY_SIZE   = 64 * 1024;
+    private static final int MIN_EXPECTED_ENTRIES = 256;
+    private static final int MAX_EXPECTED_ENTRIES = 64 * 1024;
+
+    private final LinkedHashMap<K, V>    window = new LinkedHashMap<>(0, 0.75f, true);
+    private final LinkedHashMap<K, V>    main   = new LinkedHashMap<>(0, 0.75f, true);
+    private final FrequencySketch        sketch;
+    private final SizeCalculator<V>      calculator;
+    private final EvictionListener<K, V> listener;
+    private final StatsRecorder          stats  = new StatsRecorder();
+    private       long                   maxSize;
+    private       long                   windowMaxSize;
+    private       long                   windowSize;
+    private       long                   mainSize;
+
+    public TinyLfuMemoryCache(long maxSize, SizeCalculator<V> calculator) {
+        this(maxSize, calculator, null);
+    }
+
+    public TinyLfuMemoryCache(long maxSize, SizeCalculator<V> calculator, EvictionListener<K, V> listener) {
+        this(maxSize, estimateEntries(maxSize), calculator, listener);
+    }
+
+    /**
+     * @param expectedEntries 预计缓存的条目数，用于确定频率统计的精度
+     */
+    public TinyLfuMemoryCache(long maxSize,
+                              int expectedEntries,
+                              SizeCalculator<V> calculator,
+                              EvictionListener<K, V> listener) {
+        if (maxSize <= 0 || expectedEntries <= 0 || calculator == null) {
+            throw new IllegalArgumentException("maxSize <= 0 || expectedEntries <= 0 || calculator == null");
+        }
+        this.maxSize = maxSize;
+        this.windowMaxSize = maxSize * WINDOW_PERCENT / 100;
+        this.sketch = new FrequencySketch(expectedEntries);
+        this.calculator = calculator;
+        this.listener = listener;
+    }
+
+    private static int estimateEntries(long maxSize) {
+        long entries = maxSize / AVERAGE_ENTRY_SIZE;
+        return (int) Math.max(MIN_EXPECTED_ENTRIES, Math.min(MAX_EXPECTED_ENTRIES, entries));
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V value;
+        synchronized (this) {
+            // 未命中也要计数，频繁请求的图片被淘汰后可以更快回到缓存中
+            sketch.increment(key);
+            value = window.get(key);
+            if (value == null) {
+                value = main.get(key);
+            }
+        }
+        if (value != null) {
+            stats.recordHit();
+        } else {
+            stats.recordMiss();
+        }
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        int addedSize = calculator.getSizeOf(value);
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(0);
+        if (addedSize > maxSize) {
+            // 放不下新值，同一个key的旧值已经过期，不能继续留在缓存中
+            V previous = remove(key);
+            if (previous != null && previous != value) {
+                stats.recordEviction();
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, previous));
+                notifyEvicted(evicted);
+            }
+            return;
+        }
+
+        stats.recordPut();
+        synchronized (this) {
+            sketch.increment(key);
+            V previous;
+            if (main.containsKey(key)) {
+                previous = main.put(key, value);
+                mainSize += addedSize - calculator.getSizeOf(previous);
+                trimMain(evicted);
+            } else {
+                previous = window.put(key, value);
+                windowSize += addedSize;
+                if (previous != null) {
+                    windowSize -= calculator.getSizeOf(previous);
+                }
+            }
+            boolean replaced = previous != null && previous != value;
+            if (replaced) {
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, previous));
+            }
+            evictFromWindow(evicted);
+            checkSize();
+            stats.recordEvictions(replaced ? evicted.size() - 1 : evicted.size());
+        }
+        // 新值没有通过准入时直接被丢弃，它还没有交给调用者，不能通知监听器放回缓存池
+        for (Iterator<Map.Entry<K, V>> iterator = evicted.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().getValue() == value) {
+                iterator.remove();
+            }
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            V previous = window.remove(key);
+            if (previous != null) {
+                windowSize -= calculator.getSizeOf(previous);
+                return previous;
+            }
+            previous = main.remove(key);
+            if (previous != null) {
+                mainSize -= calculator.getSizeOf(previous);
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return windowSize + mainSize;
+    }
+
+    @Override
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(0);
+        synchronized (this) {
+            this.maxSize = maxSize;
+            this.windowMaxSize = maxSize * WINDOW_PERCENT / 100;
+            trimMain(evicted);
+            evictFromWindow(evicted);
+            checkSize();
+            stats.recordEvictions(evicted.size());
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
+        if (fraction == 0) {
+            clear();
+            return;
+        }
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(0);
+        synchronized (this) {
+            // 窗口和主LRU按相同比例缩减，淘汰的值不再经过准入判断
+            trimToSize(window, (long) (windowMaxSize * fraction), true, evicted);
+            trimToSize(main, (long) ((maxSize - windowMaxSize) * fraction), false, evicted);
+            checkSize();
+            stats.recordEvictions(evicted.size());
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void clear() {
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(0);
+        synchronized (this) {
+            // entrySet中的Entry在clear之后不再可用，需要拷贝
+            for (Map.Entry<K, V> entry : window.entrySet()) {
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            for (Map.Entry<K, V> entry : main.entrySet()) {
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            window.clear();
+            main.clear();
+            windowSize = 0;
+            mainSize = 0;
+            stats.recordEvictions(evicted.size());
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        long size;
+        long maxSize;
+        synchronized (this) {
+            size = windowSize + mainSize;
+            maxSize = this.maxSize;
+        }
+        return stats.snapshot(size, maxSize);
+    }
+
+    /**
+     * 窗口超出容量时，把最久未访问的值作为候选者，尝试放入主LRU
+     */
+    private void evictFromWindow(List<Map.Entry<K, V>> evicted) {
+        Iterator<Map.Entry<K, V>> iterator = window.entrySet().iterator();
+        while (windowSize > windowMaxSize && iterator.hasNext()) {
+            Map.Entry<K, V> candidate = iterator.next();
+            K key = candidate.getKey();
+            V value = candidate.getValue();
+            int candidateSize = calculator.getSizeOf(value);
+            iterator.remove();
+            windowSize -= candidateSize;
+            if (admit(key, candidateSize, evicted)) {
+                main.put(key, value);
+                mainSize += candidateSize;
+            } else {
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            }
+        }
+    }
+
+    /**
+     * 判断候选者是否可以进入主LRU，若可以，淘汰主LRU中为它腾出空间的值
+     *
+     * @return 候选者是否被接收
+     */
+    private boolean admit(K candidate, int candidateSize, List<Map.Entry<K, V>> evicted) {
+        long mainMaxSize = maxSize - windowMaxSize;
+        if (candidateSize > mainMaxSize) {
+            return false;
+        }
+        long required = mainSize + candidateSize - mainMaxSize;
+        if (required <= 0) {
+            return true;
+        }
+
+        // 候选者的访问频率必须高于每一个需要淘汰的值
+        int candidateFrequency = sketch.frequency(candidate);
+        long freed = 0;
+        int victims = 0;
+        for (Map.Entry<K, V> victim : main.entrySet()) {
+            if (freed >= required) {
+                break;
+            }
+            if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                return false;
+            }
+            freed += calculator.getSizeOf(victim.getValue());
+            victims++;
+        }
+
+        Iterator<Map.Entry<K, V>> iterator = main.entrySet().iterator();
+        for (int i = 0; i < victims; i++) {
+            Map.Entry<K, V> victim = iterator.next();
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(victim));
+            mainSize -= calculator.getSizeOf(victim.getValue());
+            iterator.remove();
+        }
+        return true;
+    }
+
+    private void trimMain(List<Map.Entry<K, V>> evicted) {
+        trimToSize(main, maxSize - windowMaxSize, false, evicted);
+    }
+
+    private void trimToSize(LinkedHashMap<K, V> map, long targetSize, boolean isWindow, List<Map.Entry<K, V>> evicted) {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        while ((isWindow ? windowSize : mainSize) > targetSize && iterator.hasNext()) {
+            Map.Entry<K, V> victim = iterator.next();
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(victim));
+            int victimSize = calculator.getSizeOf(victim.getValue());
+            if (isWindow) {
+                windowSize -= victimSize;
+            } else {
+                mainSize -= victimSize;
+            }
+            iterator.remove();
+        }
+    }
+
+    private void checkSize() {
+        if (windowSize < 0 || mainSize < 0 || (window.isEmpty() && windowSize != 0) || (main.isEmpty() && mainSize != 0)) {
+            throw new IllegalStateException(getClass().getName() + ".sizeOf() is reporting inconsistent results!");
+        }
+    }
+
+    /**
+     * 在锁外回调，避免listener中的耗时操作阻塞其他线程
+     */
+    private void notifyEvicted(List<Map.Entry<K, V>> evicted) {
+        if (listener == null) {
+            return;
+        }
+        for (int i = 0, n = evicted.size(); i < n; i++) {
+            Map.Entry<K, V> entry = evicted.get(i);
+            listener.onEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -16,7 +16,7 @@
 
 package site.hanschen.easyloader.cache.diskcache;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
@@ -29,20 +29,26 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
- * entry has a string key and a fixed number of values. Each key must match
- * the regex <strong>[a-z0-9_-]{1,120}</strong>. Values are byte sequences,
+ * entry has a string key and a fixed number of values. Each key must be a
+ * 32 character lowercase hex string such as an MD5 digest, matching the regex
+ * <strong>[a-f0-9]{32}</strong>. Values are byte sequences,
  * accessible as streams or files. Each value must be between {@code 0} and
  * {@code Integer.MAX_VALUE} bytes in length.
  *
@@ -75,7 +81,9 @@ import java.util.concurrent.TimeUnit;
  *
  * <p>Clients call {@link #get} to read a snapshot of an entry. The read will
  * observe the value at the time that {@link #get} was called. Updates and
- * removals after the call do not impact ongoing reads.
+ * removals after the call do not impact ongoing reads. Reads look up a
+ * concurrent index and don't take the cache's lock; the LRU order and the
+ * journal are updated later, in batches, on the background thread.
  *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
@@ -84,20 +92,57 @@ import java.util.concurrent.TimeUnit;
  * responding appropriately.
  */
 public final class DiskLruCache implements Closeable {
-    static final         String JOURNAL_FILE        = "journal";
-    static final         String JOURNAL_FILE_TEMP   = "journal.tmp";
-    static final         String JOURNAL_FILE_BACKUP = "journal.bkp";
-    static final         String MAGIC               = "libcore.io.DiskLruCache";
-    static final         String VERSION_1           = "1";
-    static final         long   ANY_SEQUENCE_NUMBER = -1;
-    private static final String CLEAN               = "CLEAN";
-    private static final String DIRTY               = "DIRTY";
-    private static final String REMOVE              = "REMOVE";
-    private static final String READ                = "READ";
+    static final         String JOURNAL_FILE               = "journal.bin";
+    static final         String JOURNAL_FILE_TEMP          = "journal.bin.tmp";
+    static final         String JOURNAL_FILE_BACKUP        = "journal.bin.bkp";
+    static final         int    JOURNAL_MAGIC              = 0x444c5243; // "DLRC"
+    static final         int    VERSION_2                  = 2;
+    static final         String LEGACY_JOURNAL_FILE        = "journal";
+    static final         String LEGACY_JOURNAL_FILE_TEMP   = "journal.tmp";
+    static final         String LEGACY_JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final         String MAGIC                      = "libcore.io.DiskLruCache";
+    static final         String VERSION_1                  = "1";
+    static final         long   ANY_SEQUENCE_NUMBER        = -1;
+    private static final String CLEAN                      = "CLEAN";
+    private static final String DIRTY                      = "DIRTY";
+    private static final String REMOVE                     = "REMOVE";
+    private static final String READ                       = "READ";
+    private static final byte   OP_CLEAN                   = 1;
+    private static final byte   OP_DIRTY                   = 2;
+    private static final byte   OP_REMOVE                  = 3;
+    private static final byte   OP_READ                    = 4;
+    private static final int    HEADER_LENGTH              = 16;
+    private static final int    KEY_LENGTH                 = 16;
+    private static final int    READ_BATCH_SIZE            = 64;
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a binary journal file named "journal.bin". The journal
+     * starts with a 16 byte header of four big-endian ints: the magic number
+     * 0x444c5243, the journal version (2), the application's version and the
+     * value count.
+     *
+     * The header is followed by fixed-width records, one per cache operation:
+     *     [op: 1 byte][key: 16 bytes][length: 8 bytes] * valueCount
+     *
+     * The op is one of CLEAN(1), DIRTY(2), REMOVE(3) and READ(4), with the
+     * same meaning as the lines of the text journal described below. The key
+     * is the 32 character hex key packed into 16 bytes. Only CLEAN records
+     * carry lengths; the length fields of the other records are zero, so every
+     * record has the same width and the whole journal can be read with one
+     * bulk read and parsed without scanning for line ends. A file length that
+     * is not header + n * recordLength means the last record was truncated.
+     *
+     * Compacting the journal writes a snapshot of the current entries (one
+     * CLEAN or DIRTY record per entry in LRU order) to "journal.bin.tmp" and
+     * renames it over the journal, so the journal read at open never grows
+     * much beyond the snapshot plus the operations since.
+     *
+     * Older versions used the text journal below, named "journal". When no
+     * binary journal exists, the text journal is read once, written out as a
+     * binary snapshot and deleted. A text journal may have fewer values per
+     * entry than the cache is opened with; the missing values of its clean
+     * entries are created as empty files. A typical text journal file looks
+     * like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -142,10 +187,28 @@ public final class DiskLruCache implements Closeable {
     private final int  appVersion;
     private       long maxSize;
     private final int  valueCount;
+    private final int  recordLength;
     private long size = 0;
-    private Writer journalWriter;
+    private volatile OutputStream journalWriter;
+    private final ByteBuffer recordBuffer;
+    private final byte[]     keyBuffer = new byte[KEY_LENGTH];
     private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /**
+     * The same entries as {@link #lruEntries}, for lookups that don't hold the
+     * cache's lock. Only modified while holding the lock.
+     */
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Keys read by {@link #get} whose READ records and LRU updates haven't been
+     * applied yet. They are applied in batches by {@link #applyPendingReads}.
+     */
+    private final ConcurrentLinkedQueue<String> pendingReads         = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger                 pendingReadCount     = new AtomicInteger();
+    private final AtomicBoolean                 journalFlushScheduled = new AtomicBoolean();
     private int redundantOpCount;
+    private long evictionCount;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -169,6 +232,7 @@ public final class DiskLruCache implements Closeable {
                 if (journalWriter == null) {
                     return null; // Closed.
                 }
+                applyPendingReads();
                 trimToSize();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
@@ -179,6 +243,28 @@ public final class DiskLruCache implements Closeable {
         }
     };
 
+    /**
+     * Group commit: records appended since the last run are applied and
+     * flushed together with a single write.
+     */
+    private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            journalFlushScheduled.set(false);
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    return null; // Closed.
+                }
+                applyPendingReads();
+                journalWriter.flush();
+                if (journalRebuildRequired()) {
+                    rebuildJournal();
+                    redundantOpCount = 0;
+                }
+            }
+            return null;
+        }
+    };
+
     private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
         this.directory = directory;
         this.appVersion = appVersion;
@@ -187,6 +273,8 @@ public final class DiskLruCache implements Closeable {
         this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.recordLength = 1 + KEY_LENGTH + 8 * valueCount;
+        this.recordBuffer = ByteBuffer.allocate(recordLength);
     }
 
     /**
@@ -207,19 +295,12 @@ public final class DiskLruCache implements Closeable {
         }
 
         // If a bkp file exists, use it instead.
-        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-        if (backupFile.exists()) {
-            File journalFile = new File(directory, JOURNAL_FILE);
-            // If journal file also exists just delete backup file.
-            if (journalFile.exists()) {
-                backupFile.delete();
-            } else {
-                renameTo(backupFile, journalFile, false);
-            }
-        }
+        restoreBackup(new File(directory, JOURNAL_FILE_BACKUP), new File(directory, JOURNAL_FILE));
+        restoreBackup(new File(directory, LEGACY_JOURNAL_FILE_BACKUP), new File(directory, LEGACY_JOURNAL_FILE));
 
         // Prefer to pick up where we left off.
         DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        File legacyJournalFile = new File(directory, LEGACY_JOURNAL_FILE);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
@@ -229,6 +310,19 @@ public final class DiskLruCache implements Closeable {
                 System.out.println("DiskLruCache " + directory + " is corrupt: " + journalIsCorrupt.getMessage() + ", removing");
                 cache.delete();
             }
+        } else if (legacyJournalFile.exists()) {
+            // Migrate the text journal written by older versions.
+            try {
+                cache.readLegacyJournal(legacyJournalFile);
+                cache.processJournal();
+                cache.rebuildJournal();
+                deleteIfExists(legacyJournalFile);
+                deleteIfExists(new File(directory, LEGACY_JOURNAL_FILE_TEMP));
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                System.out.println("DiskLruCache " + directory + " is corrupt: " + journalIsCorrupt.getMessage() + ", removing");
+                cache.delete();
+            }
         }
 
         // Create a new empty cache.
@@ -238,44 +332,168 @@ public final class DiskLruCache implements Closeable {
         return cache;
     }
 
+    private static void restoreBackup(File backupFile, File journalFile) throws IOException {
+        if (backupFile.exists()) {
+            // If journal file also exists just delete backup file.
+            if (journalFile.exists()) {
+                backupFile.delete();
+            } else {
+                renameTo(backupFile, journalFile, false);
+            }
+        }
+    }
+
     private void readJournal() throws IOException {
-        StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
+        // Read the whole journal at once, records are fixed-width so no line scanning is needed.
+        ByteBuffer buffer = ByteBuffer.wrap(Util.readFully(journalFile));
+        if (buffer.remaining() < HEADER_LENGTH) {
+            throw new IOException("truncated journal header");
+        }
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        int journalAppVersion = buffer.getInt();
+        int journalValueCount = buffer.getInt();
+        if (magic != JOURNAL_MAGIC || version != VERSION_2 || journalAppVersion != appVersion || journalValueCount != valueCount) {
+            throw new IOException("unexpected journal header: [" + Integer.toHexString(magic) + ", " + version + ", " + journalAppVersion + ", " + journalValueCount + "]");
+        }
+
+        int recordCount = 0;
+        while (buffer.remaining() >= recordLength) {
+            readJournalRecord(buffer);
+            recordCount++;
+        }
+        redundantOpCount = recordCount - lruEntries.size();
+
+        // If we ended on a truncated record, rebuild the journal before appending to it.
+        if (buffer.hasRemaining()) {
+            rebuildJournal();
+        } else {
+            journalWriter = newJournalWriter();
+        }
+    }
+
+    private void readJournalRecord(ByteBuffer buffer) throws IOException {
+        byte op = buffer.get();
+        buffer.get(keyBuffer);
+        String key = Util.encodeHexKey(keyBuffer);
+        if (op == OP_REMOVE) {
+            buffer.position(buffer.position() + 8 * valueCount);
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            for (int i = 0; i < valueCount; i++) {
+                long length = buffer.getLong();
+                if (length < 0) {
+                    throw new IOException("unexpected journal record: CLEAN " + key + " " + length);
+                }
+                entry.lengths[i] = length;
+            }
+            return;
+        }
+
+        buffer.position(buffer.position() + 8 * valueCount);
+        if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else if (op == OP_READ) {
+            // This work was already done by calling lruEntries.get().
+        } else {
+            throw new IOException("unexpected journal record: " + op + " " + key);
+        }
+    }
+
+    private OutputStream newJournalWriter() throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(journalFile, true));
+    }
+
+    /**
+     * Appends a fixed-width record to {@code out}. {@code lengths} may be null
+     * for records that don't carry lengths.
+     */
+    private void writeRecord(OutputStream out, byte op, String key, long[] lengths) throws IOException {
+        recordBuffer.clear();
+        recordBuffer.put(op);
+        Util.decodeHexKey(key, keyBuffer);
+        recordBuffer.put(keyBuffer);
+        for (int i = 0; i < valueCount; i++) {
+            recordBuffer.putLong(lengths != null ? lengths[i] : 0);
+        }
+        out.write(recordBuffer.array(), 0, recordLength);
+    }
+
+    /**
+     * Reads the text journal written by older versions of this cache. Entries
+     * whose keys can't be stored in the binary journal are dropped. If the
+     * journal has fewer values per entry than {@link #valueCount}, the extra
+     * values of clean entries are created as empty files.
+     */
+    private void readLegacyJournal(File legacyJournalFile) throws IOException {
+        int journalValueCount;
+        StrictLineReader reader = new StrictLineReader(new FileInputStream(legacyJournalFile), Util.US_ASCII);
         try {
             String magic = reader.readLine();
             String version = reader.readLine();
             String appVersionString = reader.readLine();
             String valueCountString = reader.readLine();
             String blank = reader.readLine();
+            journalValueCount = parseValueCount(valueCountString);
             if (!MAGIC.equals(magic) || !VERSION_1.equals(version) || !Integer.toString(appVersion)
-                                                                              .equals(appVersionString) || !Integer.toString(
-                    valueCount).equals(valueCountString) || !"".equals(blank)) {
+                                                                              .equals(appVersionString) || journalValueCount <= 0 || journalValueCount > valueCount || !"".equals(blank)) {
                 throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
 
-            int lineCount = 0;
             while (true) {
                 try {
-                    readJournalLine(reader.readLine());
-                    lineCount++;
+                    readJournalLine(reader.readLine(), journalValueCount);
                 } catch (EOFException endOfJournal) {
                     break;
                 }
             }
-            redundantOpCount = lineCount - lruEntries.size();
-
-            // If we ended on a truncated line, rebuild the journal before appending to it.
-            if (reader.hasUnterminatedLine()) {
-                rebuildJournal();
-            } else {
-                journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true),
-                                                                          Util.US_ASCII));
-            }
         } finally {
             Util.closeQuietly(reader);
         }
+
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (!Util.isHexKey(entry.key)) {
+                for (int t = 0; t < valueCount; t++) {
+                    deleteIfExists(entry.getCleanFile(t));
+                    deleteIfExists(entry.getDirtyFile(t));
+                }
+                i.remove();
+            } else if (entry.readable && entry.currentEditor == null) {
+                for (int t = journalValueCount; t < valueCount; t++) {
+                    createEmptyFile(entry.getCleanFile(t));
+                }
+            }
+        }
     }
 
-    private void readJournalLine(String line) throws IOException {
+    private static int parseValueCount(String valueCountString) {
+        try {
+            return Integer.parseInt(valueCountString);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void createEmptyFile(File file) throws IOException {
+        new FileOutputStream(file).close();
+    }
+
+    /**
+     * @param journalValueCount the number of lengths on CLEAN lines
+     */
+    private void readJournalLine(String line, int journalValueCount) throws IOException {
         int firstSpace = line.indexOf(' ');
         if (firstSpace == -1) {
             throw new IOException("unexpected journal line: " + line);
@@ -304,7 +522,7 @@ public final class DiskLruCache implements Closeable {
             String[] parts = line.substring(secondSpace + 1).split(" ");
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(parts);
+            entry.setLengths(parts, journalValueCount);
         } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
             entry.currentEditor = new Editor(entry);
         } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
@@ -320,6 +538,14 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        try {
+            processEntries();
+        } finally {
+            index.putAll(lruEntries);
+        }
+    }
+
+    private void processEntries() throws IOException {
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -346,23 +572,20 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+        OutputStream writer = new BufferedOutputStream(new FileOutputStream(journalFileTmp));
         try {
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION_1);
-            writer.write("\n");
-            writer.write(Integer.toString(appVersion));
-            writer.write("\n");
-            writer.write(Integer.toString(valueCount));
-            writer.write("\n");
-            writer.write("\n");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(JOURNAL_MAGIC);
+            header.putInt(VERSION_2);
+            header.putInt(appVersion);
+            header.putInt(valueCount);
+            writer.write(header.array());
 
             for (Entry entry : lruEntries.values()) {
                 if (entry.currentEditor != null) {
-                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                    writeRecord(writer, OP_DIRTY, entry.key, null);
                 } else {
-                    writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                    writeRecord(writer, OP_CLEAN, entry.key, entry.lengths);
                 }
             }
         } finally {
@@ -375,7 +598,7 @@ public final class DiskLruCache implements Closeable {
         renameTo(journalFileTmp, journalFile, false);
         journalFileBackup.delete();
 
-        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+        journalWriter = newJournalWriter();
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -398,9 +621,10 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Value get(String key) throws IOException {
+    public Value get(String key) throws IOException {
         checkNotClosed();
-        Entry entry = lruEntries.get(key);
+        validateKey(key);
+        Entry entry = index.get(key);
         if (entry == null) {
             return null;
         }
@@ -416,18 +640,37 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ);
-        journalWriter.append(' ');
-        journalWriter.append(key);
-        journalWriter.append('\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        // The LRU order and the READ record are updated later, see applyPendingReads().
+        pendingReads.offer(key);
+        if (pendingReadCount.incrementAndGet() >= READ_BATCH_SIZE) {
+            scheduleJournalFlush();
         }
 
         return new Value(key, entry.sequenceNumber, entry.cleanFiles, entry.lengths);
     }
 
+    /**
+     * Moves the entries read since the last call to the head of the LRU queue
+     * and appends their READ records to the journal. Must hold the lock.
+     */
+    private void applyPendingReads() throws IOException {
+        String key;
+        while ((key = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            Entry entry = lruEntries.get(key);
+            if (entry != null && entry.readable) {
+                redundantOpCount++;
+                writeRecord(journalWriter, OP_READ, key, null);
+            }
+        }
+    }
+
+    private void scheduleJournalFlush() {
+        if (journalFlushScheduled.compareAndSet(false, true)) {
+            executorService.submit(journalFlushCallable);
+        }
+    }
+
     /**
      * Returns an editor for the entry named {@code key}, or null if another
      * edit is in progress.
@@ -438,6 +681,7 @@ public final class DiskLruCache implements Closeable {
 
     private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
+        validateKey(key);
         Entry entry = lruEntries.get(key);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
             return null; // Value is stale.
@@ -445,6 +689,7 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+            index.put(key, entry);
         } else if (entry.currentEditor != null) {
             return null; // Another edit is in progress.
         }
@@ -453,10 +698,7 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // Flush the journal before creating files to prevent file leaks.
-        journalWriter.append(DIRTY);
-        journalWriter.append(' ');
-        journalWriter.append(key);
-        journalWriter.append('\n');
+        writeRecord(journalWriter, OP_DIRTY, key, null);
         journalWriter.flush();
         return editor;
     }
@@ -485,6 +727,14 @@ public final class DiskLruCache implements Closeable {
         executorService.submit(cleanupCallable);
     }
 
+    /**
+     * Returns the number of entries evicted because the cache was over its
+     * size limit.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
@@ -534,23 +784,18 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.append(CLEAN);
-            journalWriter.append(' ');
-            journalWriter.append(entry.key);
-            journalWriter.append(entry.getLengths());
-            journalWriter.append('\n');
+            writeRecord(journalWriter, OP_CLEAN, entry.key, entry.lengths);
 
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.append(REMOVE);
-            journalWriter.append(' ');
-            journalWriter.append(entry.key);
-            journalWriter.append('\n');
+            index.remove(entry.key);
+            writeRecord(journalWriter, OP_REMOVE, entry.key, null);
         }
-        journalWriter.flush();
+        // Flushed together with other records on the background thread.
+        scheduleJournalFlush();
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -575,6 +820,7 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized boolean remove(String key) throws IOException {
         checkNotClosed();
+        validateKey(key);
         Entry entry = lruEntries.get(key);
         if (entry == null || entry.currentEditor != null) {
             return false;
@@ -590,12 +836,10 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE);
-        journalWriter.append(' ');
-        journalWriter.append(key);
-        journalWriter.append('\n');
+        writeRecord(journalWriter, OP_REMOVE, key, null);
 
         lruEntries.remove(key);
+        index.remove(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -617,11 +861,18 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private static void validateKey(String key) {
+        if (!Util.isHexKey(key)) {
+            throw new IllegalArgumentException("keys must match regex [a-f0-9]{32}: \"" + key + "\"");
+        }
+    }
+
     /**
      * Force buffered operations to the filesystem.
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
+        applyPendingReads();
         trimToSize();
         journalWriter.flush();
     }
@@ -638,15 +889,37 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
+        applyPendingReads();
         trimToSize();
         journalWriter.close();
         journalWriter = null;
     }
 
+    /**
+     * Evicts the least recently used entries until the cache uses at most
+     * {@code targetSize} bytes. Unlike {@link #setMaxSize(long)} this does not
+     * change the max size. Entries that are currently being edited are skipped.
+     */
+    public synchronized void trimToSize(long targetSize) throws IOException {
+        checkNotClosed();
+        applyPendingReads();
+        for (String key : new ArrayList<String>(lruEntries.keySet())) {
+            if (size <= targetSize) {
+                break;
+            }
+            if (remove(key)) {
+                evictionCount++;
+            }
+        }
+        journalWriter.flush();
+    }
+
     private void trimToSize() throws IOException {
         while (size > maxSize) {
             Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            if (remove(toEvict.getKey())) {
+                evictionCount++;
+            }
         }
     }
 
@@ -829,7 +1102,7 @@ public final class DiskLruCache implements Closeable {
         /**
          * True if this entry has ever been published.
          */
-        private boolean readable;
+        private volatile boolean readable;
 
         /**
          * The ongoing edit or null if this entry is not being edited.
@@ -839,7 +1112,7 @@ public final class DiskLruCache implements Closeable {
         /**
          * The sequence number of the most recently committed edit to this entry.
          */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
 
         private Entry(String key) {
             this.key = key;
@@ -868,10 +1141,11 @@ public final class DiskLruCache implements Closeable {
         }
 
         /**
-         * Set lengths using decimal numbers like "10123".
+         * Set lengths using decimal numbers like "10123". Lengths after
+         * {@code count} are left at zero.
          */
-        private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
+        private void setLengths(String[] strings, int count) throws IOException {
+            if (strings.length != count) {
                 throw invalidLengths(strings);
             }
 
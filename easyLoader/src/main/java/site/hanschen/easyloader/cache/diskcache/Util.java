@@ -18,6 +18,7 @@ package site.hanschen.easyloader.cache.diskcache;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringWriter;
@@ -30,6 +31,8 @@ final class Util {
     static final Charset US_ASCII = Charset.forName("US-ASCII");
     static final Charset UTF_8    = Charset.forName("UTF-8");
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private Util() {
     }
 
@@ -47,6 +50,66 @@ final class Util {
         }
     }
 
+    /**
+     * Reads the whole file with as few reads as possible.
+     */
+    static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("file too large: " + file);
+        }
+        byte[] bytes = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count == -1) {
+                    // The file was truncated while reading, ignore the tail.
+                    byte[] truncated = new byte[offset];
+                    System.arraycopy(bytes, 0, truncated, 0, offset);
+                    return truncated;
+                }
+                offset += count;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns true if {@code key} is a 32 character lowercase hex string that
+     * can be packed into 16 bytes by {@link #decodeHexKey}.
+     */
+    static boolean isHexKey(String key) {
+        if (key == null || key.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void decodeHexKey(String key, byte[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) ((Character.digit(key.charAt(2 * i), 16) << 4) | Character.digit(key.charAt(2 * i + 1), 16));
+        }
+    }
+
+    static String encodeHexKey(byte[] in) {
+        char[] chars = new char[in.length * 2];
+        for (int i = 0; i < in.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(in[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX_DIGITS[in[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
     /**
      * Deletes the contents of {@code dir}. Throws an IOException if any file
      * could not be deleted, or if {@code dir} is not a readable directory.
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache.stats;
+
+/**
+ * 某一时刻的缓存统计数据，不会随缓存变化
+ */
+public final class CacheStats {
+
+    private final long                      hitCount;
+    private final long                      missCount;
+    private final long                      putCount;
+    private final long                      evictionCount;
+    private final long                      size;
+    private final long                      maxSize;
+    private final LatencyHistogram.Snapshot readLatency;
+    private final LatencyHistogram.Snapshot writeLatency;
+
+    public CacheStats(long hitCount,
+                      long missCount,
+                      long putCount,
+                      long evictionCount,
+                      long size,
+                      long maxSize,
+                      LatencyHistogram.Snapshot readLatency,
+                      LatencyHistogram.Snapshot writeLatency) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+        this.maxSize = maxSize;
+        this.readLatency = readLatency;
+        this.writeLatency = writeLatency;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return 命中率，没有请求时返回1
+     */
+    public double getHitRate() {
+        long requestCount = getRequestCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return 已使用的字节数
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return 读取延迟，内存缓存不统计
+     */
+    public LatencyHistogram.Snapshot getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * @return 写入延迟，内存缓存不统计
+     */
+    public LatencyHistogram.Snapshot getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * @return 两份统计数据的合计，用于统计多个缓存
+     */
+    public CacheStats plus(CacheStats other) {
+        return new CacheStats(hitCount + other.hitCount,
+                              missCount + other.missCount,
+                              putCount + other.putCount,
+                              evictionCount + other.evictionCount,
+                              size + other.size,
+                              maxSize + other.maxSize,
+                              plus(readLatency, other.readLatency),
+                              plus(writeLatency, other.writeLatency));
+    }
+
+    private static LatencyHistogram.Snapshot plus(LatencyHistogram.Snapshot a, LatencyHistogram.Snapshot b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null ? a : a.plus(b);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", putCount=" + putCount +
+                ", evictionCount=" + evictionCount +
+                ", size=" + size +
+                ", maxSize=" + maxSize +
+                ", readLatency={" + readLatency + '}' +
+                ", writeLatency={" + writeLatency + '}' +
+                '}';
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按2的幂划分区间的延迟直方图，第i个区间统计[2^i, 2^(i+1))微秒的样本，第0个区间还包含小于1微秒的样本
+ */
+public final class LatencyHistogram {
+
+    static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long   total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.total = total;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @return 第{@code bucket}个区间的样本数
+         */
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        public int getBucketSize() {
+            return counts.length;
+        }
+
+        /**
+         * @return 两个快照合并后的快照，用于统计多个缓存的合计
+         */
+        public Snapshot plus(Snapshot other) {
+            long[] sum = new long[Math.max(counts.length, other.counts.length)];
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] = (i < counts.length ? counts[i] : 0) + (i < other.counts.length ? other.counts[i] : 0);
+            }
+            return new Snapshot(sum);
+        }
+
+        /**
+         * 返回百分位所在区间的上限(微秒)，没有样本时返回0
+         *
+         * @param percentile 0~1之间，比如0.99
+         */
+        public long getPercentileMicros(double percentile) {
+            if (percentile < 0 || percentile > 1) {
+                throw new IllegalArgumentException("percentile must be in [0, 1]: " + percentile);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= threshold && seen > 0) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 1L << counts.length;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + total + ", p50=" + getPercentileMicros(0.5) + "us, p90=" + getPercentileMicros(0.9)
+                    + "us, p99=" + getPercentileMicros(0.99) + "us";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 缓存统计数据的记录器，可以在多个线程中同时调用
+ *
+ * <p>计数器按线程分散到多个相互填充隔开的槽中，不同线程不会竞争同一个缓存行，读取时再求和</p>
+ */
+public final class StatsRecorder {
+
+    private static final int HIT      = 0;
+    private static final int MISS     = 1;
+    private static final int PUT      = 2;
+    private static final int EVICTION = 3;
+    /**
+     * 每个槽占用的long个数，保证不同槽的计数器不在同一个缓存行(64字节)
+     */
+    private static final int PADDING  = 16;
+
+    private final AtomicLongArray  counters;
+    private final int              stripeMask;
+    private final LatencyHistogram readLatency  = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    public StatsRecorder() {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors * 2 && stripes < 16) {
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+        this.counters = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public void recordHit() {
+        add(HIT, 1);
+    }
+
+    public void recordMiss() {
+        add(MISS, 1);
+    }
+
+    public void recordPut() {
+        add(PUT, 1);
+    }
+
+    public void recordEviction() {
+        add(EVICTION, 1);
+    }
+
+    public void recordEvictions(int count) {
+        if (count > 0) {
+            add(EVICTION, count);
+        }
+    }
+
+    public void recordReadNanos(long nanos) {
+        readLatency.record(nanos);
+    }
+
+    public void recordWriteNanos(long nanos) {
+        writeLatency.record(nanos);
+    }
+
+    private void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        counters.addAndGet(stripe * PADDING + counter, delta);
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            sum += counters.get(stripe * PADDING + counter);
+        }
+        return sum;
+    }
+
+    /**
+     * @param size    当前缓存大小
+     * @param maxSize 缓存最大容量
+     */
+    public CacheStats snapshot(long size, long maxSize) {
+        return new CacheStats(sum(HIT),
+                              sum(MISS),
+                              sum(PUT),
+                              sum(EVICTION),
+                              size,
+                              maxSize,
+                              readLatency.snapshot(),
+                              writeLatency.snapshot());
+    }
+}
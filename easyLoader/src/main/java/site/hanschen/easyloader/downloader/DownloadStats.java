@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.downloader;
+
+/**
+ * 某一时刻的下载并发控制数据，不会随下载变化
+ */
+public final class DownloadStats {
+
+    private final int    limit;
+    private final int    minLimit;
+    private final int    maxLimit;
+    private final double throughput;
+    private final long   averageTtfbMillis;
+    private final long   baselineTtfbMillis;
+    private final long   sampleCount;
+    private final long   failureCount;
+
+    public DownloadStats(int limit,
+                         int minLimit,
+                         int maxLimit,
+                         double throughput,
+                         long averageTtfbMillis,
+                         long baselineTtfbMillis,
+                         long sampleCount,
+                         long failureCount) {
+        this.limit = limit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.throughput = throughput;
+        this.averageTtfbMillis = averageTtfbMillis;
+        this.baselineTtfbMillis = baselineTtfbMillis;
+        this.sampleCount = sampleCount;
+        this.failureCount = failureCount;
+    }
+
+    /**
+     * @return 当前允许同时下载的数量
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return 最近一个统计窗口内所有下载合计的吞吐量，字节/秒
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return 最近一个统计窗口内的平均首字节时间
+     */
+    public long getAverageTtfbMillis() {
+        return averageTtfbMillis;
+    }
+
+    /**
+     * @return 没有拥塞时的首字节时间，用于判断是否拥塞
+     */
+    public long getBaselineTtfbMillis() {
+        return baselineTtfbMillis;
+    }
+
+    /**
+     * @return 网络变化后成功的下载数
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return 网络变化后失败的下载数
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadStats{" +
+                "limit=" + limit +
+                ", minLimit=" + minLimit +
+                ", maxLimit=" + maxLimit +
+                ", throughput=" + throughput +
+                ", averageTtfbMillis=" + averageTtfbMillis +
+                ", baselineTtfbMillis=" + baselineTtfbMillis +
+                ", sampleCount=" + sampleCount +
+                ", failureCount=" + failureCount +
+                '}';
+    }
+}
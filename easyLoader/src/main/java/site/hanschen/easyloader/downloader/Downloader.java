@@ -18,11 +18,29 @@ package site.hanschen.easyloader.downloader;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import site.hanschen.easyloader.bean.CacheMetadata;
 import site.hanschen.easyloader.bean.NetworkResponse;
+import site.hanschen.easyloader.util.CancellationSignal;
 
 import java.io.IOException;
 
 public interface Downloader {
 
     NetworkResponse load(@NonNull Uri uri) throws IOException;
+
+    /**
+     * 带缓存校验信息下载，{@code cached}有校验信息时发送条件请求，
+     * 服务器返回304时返回{@link NetworkResponse#isNotModified()}为true的响应
+     *
+     * @param cached 磁盘缓存中保存的校验信息，没有缓存时为null
+     */
+    NetworkResponse load(@NonNull Uri uri, CacheMetadata cached) throws IOException;
+
+    /**
+     * 可以取消的下载，{@code signal}被取消时中止连接，正在阻塞的{@code load}和返回的InputStream的读取尽快抛出IOException，
+     * 不再继续占用带宽和线程
+     *
+     * @param signal 取消下载，为null时不能取消
+     */
+    NetworkResponse load(@NonNull Uri uri, CacheMetadata cached, CancellationSignal signal) throws IOException;
 }
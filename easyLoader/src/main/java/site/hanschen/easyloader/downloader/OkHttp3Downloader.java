@@ -18,10 +18,15 @@ package site.hanschen.easyloader.downloader;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import site.hanschen.easyloader.bean.CacheMetadata;
 import site.hanschen.easyloader.bean.NetworkResponse;
 import site.hanschen.easyloader.log.EasyLoaderLog;
+import site.hanschen.easyloader.util.CancellableInputStream;
+import site.hanschen.easyloader.util.CancellationSignal;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Date;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -36,14 +41,55 @@ public class OkHttp3Downloader implements Downloader {
 
     @Override
     public NetworkResponse load(@NonNull Uri uri) throws IOException {
+        return load(uri, null);
+    }
+
+    @Override
+    public NetworkResponse load(@NonNull Uri uri, CacheMetadata cached) throws IOException {
+        return load(uri, cached, null);
+    }
+
+    @Override
+    public NetworkResponse load(@NonNull Uri uri, CacheMetadata cached, CancellationSignal signal) throws IOException {
         EasyLoaderLog.d("download", "download: " + uri.toString());
         Request.Builder builder = new Request.Builder().url(uri.toString());
-        okhttp3.Response response = client.newCall(builder.build()).execute();
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                builder.header("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                builder.header("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        final okhttp3.Call call = client.newCall(builder.build());
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    call.cancel();
+                }
+            });
+        }
+        okhttp3.Response response = call.execute();
         int responseCode = response.code();
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            response.body().close();
+            return NetworkResponse.notModified(parseMetadata(response));
+        }
         if (responseCode >= 300) {
             response.body().close();
             throw new ResponseException(responseCode + " " + response.message(), responseCode);
         }
-        return new NetworkResponse(response.body().byteStream(), response.body().contentLength());
+        return new NetworkResponse(CancellableInputStream.wrap(response.body().byteStream(), signal),
+                                   response.body().contentLength(),
+                                   parseMetadata(response));
+    }
+
+    private static CacheMetadata parseMetadata(okhttp3.Response response) {
+        Date expires = response.headers().getDate("Expires");
+        return CacheMetadata.fromHeaders(response.header("ETag"),
+                                         response.header("Last-Modified"),
+                                         response.header("Cache-Control"),
+                                         expires != null ? expires.getTime() : 0);
     }
 }
@@ -19,7 +19,10 @@ import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import site.hanschen.easyloader.bean.CacheMetadata;
 import site.hanschen.easyloader.bean.NetworkResponse;
+import site.hanschen.easyloader.util.CancellableInputStream;
+import site.hanschen.easyloader.util.CancellationSignal;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -47,15 +50,56 @@ public class UrlConnectionDownloader implements Downloader {
 
     @Override
     public NetworkResponse load(@NonNull Uri uri) throws IOException {
+        return load(uri, null);
+    }
+
+    @Override
+    public NetworkResponse load(@NonNull Uri uri, CacheMetadata cached) throws IOException {
+        return load(uri, cached, null);
+    }
+
+    @Override
+    public NetworkResponse load(@NonNull Uri uri, CacheMetadata cached, CancellationSignal signal) throws IOException {
 
-        HttpURLConnection connection = openConnection(uri);
+        final HttpURLConnection connection = openConnection(uri);
+        if (signal != null) {
+            // 在其他线程断开连接，阻塞中的读取会抛出IOException
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    connection.disconnect();
+                }
+            });
+        }
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                connection.setRequestProperty("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.getLastModified());
+            }
+        }
         int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            CacheMetadata metadata = parseMetadata(connection);
+            connection.disconnect();
+            return NetworkResponse.notModified(metadata);
+        }
         if (responseCode >= 300) {
             connection.disconnect();
             throw new ResponseException(responseCode + " " + connection.getResponseMessage(), responseCode);
         }
 
         long contentLength = connection.getHeaderFieldInt("Content-Length", -1);
-        return new NetworkResponse(connection.getInputStream(), contentLength);
+        return new NetworkResponse(CancellableInputStream.wrap(connection.getInputStream(), signal),
+                                   contentLength,
+                                   parseMetadata(connection));
+    }
+
+    private static CacheMetadata parseMetadata(HttpURLConnection connection) {
+        return CacheMetadata.fromHeaders(connection.getHeaderField("ETag"),
+                                         connection.getHeaderField("Last-Modified"),
+                                         connection.getHeaderField("Cache-Control"),
+                                         connection.getExpiration());
     }
 }
@@ -16,8 +16,10 @@
 package site.hanschen.easyloader.request;
 
 import site.hanschen.easyloader.LoadedFrom;
+import site.hanschen.easyloader.bean.CacheMetadata;
 import site.hanschen.easyloader.bean.NetworkResponse;
 import site.hanschen.easyloader.downloader.Downloader;
+import site.hanschen.easyloader.util.CancellationSignal;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,11 +50,31 @@ public class NetworkRequestHandler extends RequestHandler {
 
     @Override
     public Result handle(Request request) throws IOException {
-        NetworkResponse response = downloader.load(request.uri);
+        return handle(request, null);
+    }
+
+    @Override
+    public Result handle(Request request, CacheMetadata cached) throws IOException {
+        return handle(request, cached, null);
+    }
+
+    @Override
+    public Result handle(Request request, CacheMetadata cached, CancellationSignal signal) throws IOException {
+        // 没有校验信息时条件请求没有意义
+        CacheMetadata validators = cached != null && cached.hasValidators() ? cached : null;
+        NetworkResponse response = downloader.load(request.uri, validators, signal);
+        if (response.isNotModified()) {
+            return Result.notModified(response.getMetadata());
+        }
         InputStream is = response.getInputStream();
         if (is != null) {
-            return new Result(is, LoadedFrom.NETWORK);
+            return new Result(is, LoadedFrom.NETWORK, response.getMetadata());
         }
         return null;
     }
+
+    @Override
+    public boolean supportsSourceCache() {
+        return true;
+    }
 }
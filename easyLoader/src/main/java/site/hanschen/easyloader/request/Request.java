@@ -102,6 +102,10 @@ public class Request {
      * 请求优先级
      */
     public final Priority             priority;
+    /**
+     * 处理结果磁盘缓存的分区，为null时按目标尺寸选择
+     */
+    public final String               diskPartition;
 
     private Request(Uri uri,
                     int resourceId,
@@ -118,7 +122,8 @@ public class Request {
                     boolean hasRotationPivot,
                     boolean purgeable,
                     Bitmap.Config config,
-                    Priority priority) {
+                    Priority priority,
+                    String diskPartition) {
         this.uri = uri;
         this.resourceId = resourceId;
         this.stableKey = stableKey;
@@ -139,6 +144,7 @@ public class Request {
         this.purgeable = purgeable;
         this.config = config;
         this.priority = priority;
+        this.diskPartition = diskPartition;
     }
 
     @Override
@@ -243,6 +249,7 @@ public class Request {
         private List<Transformation> transformations;
         private Bitmap.Config        config;
         private Priority             priority;
+        private String               diskPartition;
 
         /**
          * Start building a request using the specified {@link Uri}.
@@ -283,6 +290,7 @@ public class Request {
             }
             config = request.config;
             priority = request.priority;
+            diskPartition = request.diskPartition;
         }
 
         boolean hasImage() {
@@ -480,6 +488,15 @@ public class Request {
             return this;
         }
 
+        /**
+         * 指定处理结果磁盘缓存的分区，比如{@link site.hanschen.easyloader.cache.PartitionedDiskCache#PARTITION_THUMBNAIL}，
+         * 磁盘缓存没有分区或者分区不存在时忽略
+         */
+        public Builder diskPartition(String partition) {
+            this.diskPartition = partition;
+            return this;
+        }
+
         /**
          * Add a custom transformation to be applied to the image.
          * Custom transformations will always be run after the built-in transformations.
@@ -543,7 +560,8 @@ public class Request {
                                hasRotationPivot,
                                purgeable,
                                config,
-                               priority);
+                               priority,
+                               diskPartition);
         }
     }
 }
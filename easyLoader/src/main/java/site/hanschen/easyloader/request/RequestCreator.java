@@ -232,6 +232,14 @@ public class RequestCreator {
         return this;
     }
 
+    /**
+     * 指定处理结果磁盘缓存的分区，不指定时按目标尺寸选择缩略图或大图分区
+     */
+    public RequestCreator diskPartition(String partition) {
+        builder.diskPartition(partition);
+        return this;
+    }
+
     public RequestCreator transform(Transformation transformation) {
         builder.transform(transformation);
         return this;
@@ -306,8 +314,10 @@ public class RequestCreator {
         String key = Utils.createKey(finalRequest, new StringBuilder());
 
         Action action = new GetAction(loader, finalRequest, memoryPolicy, diskPolicy, tag, key);
-        return BitmapHunter.forRequest(loader, dispatcher, loader.getMemoryCacheManager(), loader.getDiskCacheManager(), action)
-                           .hunt();
+        Bitmap bitmap = BitmapHunter.forRequest(loader, dispatcher, loader.getMemoryCacheManager(), loader.getDiskCacheManager(), action)
+                                    .hunt();
+        loader.exportBitmap(bitmap);
+        return bitmap;
     }
 
     /**
@@ -319,8 +329,10 @@ public class RequestCreator {
 
     /**
      * 异步请求图片，可用作事先对图片进行缓存，可在任意线程调用,callback会被强引用，从而可能导致callback相关的Activity或Fragment在请求完成之前不能被释放
+     *
+     * @return 提交的请求，可以通过{@link EasyLoader#cancelFetch(Action)}取消；没有图片时返回null
      */
-    public void fetch(Callback callback) {
+    public Action fetch(Callback callback) {
 
         if (deferred) {
             throw new IllegalStateException("Fit cannot be used with fetch.");
@@ -336,7 +348,9 @@ public class RequestCreator {
 
             Action action = new FetchAction(loader, finalRequest, memoryPolicy, diskPolicy, tag, key, callback);
             loader.submit(action);
+            return action;
         }
+        return null;
     }
 
     /**
@@ -366,6 +380,7 @@ public class RequestCreator {
             Bitmap bitmap = loader.quickMemoryCacheCheck(key);
             if (bitmap != null) {
                 loader.cancelRequest(target);
+                loader.activate(target, key, bitmap, memoryPolicy);
                 target.onBitmapLoaded(bitmap, LoadedFrom.MEMORY);
                 return;
             }
@@ -512,6 +527,7 @@ public class RequestCreator {
             Bitmap bitmap = loader.quickMemoryCacheCheck(key);
             if (bitmap != null) {
                 loader.cancelRequest(target);
+                loader.activate(target, key, bitmap, memoryPolicy);
                 EnhanceDrawable.setBitmap(target,
                                           loader.getContext(),
                                           bitmap,
@@ -17,6 +17,9 @@ package site.hanschen.easyloader.request;
 
 import android.net.NetworkInfo;
 
+import site.hanschen.easyloader.bean.CacheMetadata;
+import site.hanschen.easyloader.util.CancellationSignal;
+
 import java.io.IOException;
 
 public abstract class RequestHandler {
@@ -31,6 +34,25 @@ public abstract class RequestHandler {
      */
     public abstract Result handle(Request request) throws IOException;
 
+    /**
+     * 带磁盘缓存中的校验信息处理request，数据没有变化时可以返回{@link Result#notModified(CacheMetadata)}，
+     * 默认忽略校验信息
+     *
+     * @param cached 磁盘缓存中保存的缓存信息，没有缓存时为null
+     */
+    public Result handle(Request request, CacheMetadata cached) throws IOException {
+        return handle(request);
+    }
+
+    /**
+     * 可以取消的处理，{@code signal}被取消时尽快中止并抛出IOException，默认不支持取消
+     *
+     * @param signal 取消处理，为null时不能取消
+     */
+    public Result handle(Request request, CacheMetadata cached, CancellationSignal signal) throws IOException {
+        return handle(request, cached);
+    }
+
     /**
      * @return 重试最大次数
      */
@@ -45,6 +67,14 @@ public abstract class RequestHandler {
         return false;
     }
 
+    /**
+     * @return 是否把{@link Result#getStream()}的原始数据保存到磁盘缓存中，
+     * 只有获取数据代价较高的RequestHandler(比如网络)才需要
+     */
+    public boolean supportsSourceCache() {
+        return false;
+    }
+
     /**
      * @return 是否支持联网重试，若为true,则网络再次联通的时候将会重新请求
      */
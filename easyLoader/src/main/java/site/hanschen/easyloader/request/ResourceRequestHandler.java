@@ -25,17 +25,26 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
 
+import site.hanschen.easyloader.cache.BitmapPool;
+
 import static android.content.ContentResolver.SCHEME_ANDROID_RESOURCE;
 import static site.hanschen.easyloader.LoadedFrom.DISK;
 import static site.hanschen.easyloader.util.BitmapUtils.calculateInSampleSize;
 import static site.hanschen.easyloader.util.BitmapUtils.createBitmapOptions;
+import static site.hanschen.easyloader.util.BitmapUtils.releaseInBitmap;
 import static site.hanschen.easyloader.util.BitmapUtils.requiresInSampleSize;
 
 public class ResourceRequestHandler extends RequestHandler {
-    private final Context context;
+    private final Context    context;
+    private final BitmapPool pool;
 
     public ResourceRequestHandler(Context context) {
+        this(context, null);
+    }
+
+    public ResourceRequestHandler(Context context, BitmapPool pool) {
         this.context = context;
+        this.pool = pool;
     }
 
     @Override
@@ -48,16 +57,25 @@ public class ResourceRequestHandler extends RequestHandler {
     public Result handle(Request request) throws IOException {
         Resources res = getResources(context, request);
         int id = getResourceId(res, request);
-        return new Result(decodeResource(res, id, request), DISK);
+        return new Result(decodeResource(res, id, request, pool), DISK);
     }
 
-    private static Bitmap decodeResource(Resources resources, int id, Request data) {
-        final BitmapFactory.Options options = createBitmapOptions(data);
+    private static Bitmap decodeResource(Resources resources, int id, Request data, BitmapPool pool) {
+        final BitmapFactory.Options options = createBitmapOptions(data, pool);
         if (requiresInSampleSize(options)) {
             BitmapFactory.decodeResource(resources, id, options);
-            calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+            calculateInSampleSize(data.targetWidth, data.targetHeight, options, data, pool);
+        }
+        try {
+            return BitmapFactory.decodeResource(resources, id, options);
+        } catch (IllegalArgumentException e) {
+            // inBitmap不满足复用条件(比如资源按屏幕密度缩放后尺寸变大)，不复用重新解码
+            if (options == null || options.inBitmap == null) {
+                throw e;
+            }
+            releaseInBitmap(options, pool);
+            return BitmapFactory.decodeResource(resources, id, options);
         }
-        return BitmapFactory.decodeResource(resources, id, options);
     }
 
     private static int getResourceId(Resources resources, Request data) throws FileNotFoundException {
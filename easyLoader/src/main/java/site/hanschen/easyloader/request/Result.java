@@ -18,16 +18,19 @@ package site.hanschen.easyloader.request;
 import android.graphics.Bitmap;
 
 import site.hanschen.easyloader.LoadedFrom;
+import site.hanschen.easyloader.bean.CacheMetadata;
 import site.hanschen.easyloader.util.Utils;
 
 import java.io.InputStream;
 
 public class Result {
 
-    private final LoadedFrom  loadedFrom;
-    private final Bitmap      bitmap;
-    private final InputStream stream;
-    private final int         exifOrientation;
+    private final LoadedFrom    loadedFrom;
+    private final Bitmap        bitmap;
+    private final InputStream   stream;
+    private final int           exifOrientation;
+    private final CacheMetadata metadata;
+    private final boolean       notModified;
 
     Result(Bitmap bitmap, LoadedFrom loadedFrom) {
         this(Utils.checkNotNull(bitmap, "bitmap == null"), null, loadedFrom, 0);
@@ -37,7 +40,40 @@ public class Result {
         this(null, Utils.checkNotNull(stream, "stream == null"), loadedFrom, 0);
     }
 
+    Result(InputStream stream, LoadedFrom loadedFrom, CacheMetadata metadata) {
+        this(null, Utils.checkNotNull(stream, "stream == null"), loadedFrom, 0, metadata, false);
+    }
+
     Result(Bitmap bitmap, InputStream stream, LoadedFrom loadedFrom, int exifOrientation) {
+        this(bitmap, stream, loadedFrom, exifOrientation, CacheMetadata.EMPTY, false);
+    }
+
+    /**
+     * 304时没有数据，bitmap和stream都为空
+     */
+    private Result(CacheMetadata metadata) {
+        this.bitmap = null;
+        this.stream = null;
+        this.loadedFrom = LoadedFrom.NETWORK;
+        this.exifOrientation = 0;
+        this.metadata = metadata;
+        this.notModified = true;
+    }
+
+    /**
+     * @param metadata 304响应中的缓存信息
+     * @return 数据没有变化的结果，应使用磁盘缓存中的数据
+     */
+    static Result notModified(CacheMetadata metadata) {
+        return new Result(metadata);
+    }
+
+    private Result(Bitmap bitmap,
+                   InputStream stream,
+                   LoadedFrom loadedFrom,
+                   int exifOrientation,
+                   CacheMetadata metadata,
+                   boolean notModified) {
         //bitmap或者stream必须一个为空，一个非空
         if ((bitmap != null) == (stream != null)) {
             throw new AssertionError();
@@ -46,6 +82,15 @@ public class Result {
         this.stream = stream;
         this.loadedFrom = Utils.checkNotNull(loadedFrom, "loadedFrom == null");
         this.exifOrientation = exifOrientation;
+        this.metadata = metadata != null ? metadata : CacheMetadata.EMPTY;
+        this.notModified = notModified;
+    }
+
+    /**
+     * @return 除数据外都相同的结果，用于多个请求共享同一次下载的数据
+     */
+    public Result withStream(InputStream stream) {
+        return new Result(null, Utils.checkNotNull(stream, "stream == null"), loadedFrom, exifOrientation, metadata, false);
     }
 
     public Bitmap getBitmap() {
@@ -63,4 +108,18 @@ public class Result {
     public int getExifOrientation() {
         return exifOrientation;
     }
+
+    /**
+     * @return 需要和数据一起保存到磁盘缓存的缓存信息
+     */
+    public CacheMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return 数据是否没有变化(HTTP 304)，此时bitmap和stream都为空
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
 }
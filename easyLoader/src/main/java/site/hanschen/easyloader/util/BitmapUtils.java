@@ -18,11 +18,13 @@ package site.hanschen.easyloader.util;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import site.hanschen.easyloader.cache.BitmapPool;
 import site.hanschen.easyloader.request.Request;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.HONEYCOMB_MR1;
 import static android.os.Build.VERSION_CODES.KITKAT;
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
 
 public class BitmapUtils {
 
@@ -41,12 +43,40 @@ public class BitmapUtils {
         return result;
     }
 
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
     /**
      * Lazily create {@link BitmapFactory.Options} based in given
      * {@link Request}, only instantiating them if needed.
      */
     public static BitmapFactory.Options createBitmapOptions(Request data) {
-        final boolean justBounds = data.hasSize();
+        return createBitmapOptions(data, null);
+    }
+
+    /**
+     * 同{@link #createBitmapOptions(Request)}，若可以从{@code pool}复用Bitmap，会先解码边界以得到解码后的尺寸，
+     * 并设置{@link BitmapFactory.Options#inMutable}，使解码出来的Bitmap之后也能放回缓存池。
+     * 在{@link #calculateInSampleSize(int, int, BitmapFactory.Options, Request, BitmapPool)}中设置
+     * {@link BitmapFactory.Options#inBitmap}
+     */
+    public static BitmapFactory.Options createBitmapOptions(Request data, BitmapPool pool) {
+        // purgeable的Bitmap不能作为inBitmap
+        final boolean reuse = pool != null && !(data.purgeable && SDK_INT < LOLLIPOP);
+        final boolean justBounds = data.hasSize() || reuse;
         final boolean hasConfig = data.config != null;
         BitmapFactory.Options options = null;
         if (justBounds || hasConfig || data.purgeable) {
@@ -54,6 +84,7 @@ public class BitmapUtils {
             options.inJustDecodeBounds = justBounds;
             options.inInputShareable = data.purgeable;
             options.inPurgeable = data.purgeable;
+            options.inMutable = reuse;
             if (hasConfig) {
                 options.inPreferredConfig = data.config;
             }
@@ -69,6 +100,52 @@ public class BitmapUtils {
         calculateInSampleSize(reqWidth, reqHeight, options.outWidth, options.outHeight, options, request);
     }
 
+    /**
+     * 计算inSampleSize，并根据解码后的尺寸从{@code pool}中取出可复用的Bitmap设置到{@link BitmapFactory.Options#inBitmap}
+     */
+    public static void calculateInSampleSize(int reqWidth,
+                                             int reqHeight,
+                                             BitmapFactory.Options options,
+                                             Request request,
+                                             BitmapPool pool) {
+        calculateInSampleSize(reqWidth, reqHeight, options, request);
+        if (pool != null && options.inMutable) {
+            options.inBitmap = getReusableBitmap(options, pool);
+        }
+    }
+
+    /**
+     * 解码失败时把未使用的inBitmap放回缓存池
+     */
+    public static void releaseInBitmap(BitmapFactory.Options options, BitmapPool pool) {
+        if (options != null && options.inBitmap != null) {
+            if (pool == null || !pool.put(options.inBitmap)) {
+                options.inBitmap.recycle();
+            }
+            options.inBitmap = null;
+        }
+    }
+
+    private static Bitmap getReusableBitmap(BitmapFactory.Options options, BitmapPool pool) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        if (SDK_INT >= KITKAT) {
+            // 部分解码器只支持2的幂的采样率，按向下取整后的采样率估算，保证取到的Bitmap足够大
+            int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+            int width = (int) Math.ceil(options.outWidth / (double) sampleSize);
+            int height = (int) Math.ceil(options.outHeight / (double) sampleSize);
+            return pool.get(width, height, config);
+        }
+        // KITKAT以前要求宽高完全一致，且只支持jpeg和png，inSampleSize必须为1
+        boolean supportedType = "image/jpeg".equals(options.outMimeType) || "image/png".equals(options.outMimeType);
+        if (options.inSampleSize > 1 || !supportedType) {
+            return null;
+        }
+        return pool.get(options.outWidth, options.outHeight, config);
+    }
+
     public static void calculateInSampleSize(int reqWidth,
                                              int reqHeight,
                                              int width,
@@ -76,7 +153,8 @@ public class BitmapUtils {
                                              BitmapFactory.Options options,
                                              Request request) {
         int sampleSize = 1;
-        if (height > reqHeight || width > reqWidth) {
+        boolean hasSize = reqWidth != 0 || reqHeight != 0;
+        if (hasSize && (height > reqHeight || width > reqWidth)) {
             final int heightRatio;
             final int widthRatio;
             if (reqHeight == 0) {
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 每次读取前检查{@link CancellationSignal}，被取消后抛出InterruptedIOException，
+ * 使下载和解码在两次读取之间停止。阻塞中的读取需要由{@link CancellationSignal.OnCancelListener}关闭连接来中止
+ */
+public class CancellableInputStream extends FilterInputStream {
+
+    private final CancellationSignal signal;
+
+    public CancellableInputStream(InputStream in, CancellationSignal signal) {
+        super(in);
+        this.signal = signal;
+    }
+
+    /**
+     * @param signal 为null时直接返回原来的InputStream
+     */
+    public static InputStream wrap(InputStream in, CancellationSignal signal) {
+        return in == null || signal == null ? in : new CancellableInputStream(in, signal);
+    }
+
+    @Override
+    public int read() throws IOException {
+        signal.throwIfCanceled();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        signal.throwIfCanceled();
+        return super.read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        signal.throwIfCanceled();
+        return super.skip(n);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 取消正在进行的操作，比如下载和解码。android.os.CancellationSignal需要API 16，这里提供相同的用法
+ *
+ * <p>{@link #cancel()}可以在任意线程调用，设置的{@link OnCancelListener}在调用cancel的线程中回调，
+ * 用于中止阻塞的操作(比如关闭连接)，不能执行耗时的工作</p>
+ */
+public final class CancellationSignal {
+
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+    private volatile boolean          canceled;
+    private          OnCancelListener listener;
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * @throws InterruptedIOException 已经被取消
+     */
+    public void throwIfCanceled() throws InterruptedIOException {
+        if (canceled) {
+            throw new InterruptedIOException("Canceled");
+        }
+    }
+
+    public void cancel() {
+        OnCancelListener listener;
+        synchronized (this) {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            listener = this.listener;
+            this.listener = null;
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * 设置取消时的回调，已经被取消时立即回调。传入null清除之前的回调
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (!canceled) {
+                this.listener = listener;
+                return;
+            }
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 无锁的多生产者单消费者队列
+ *
+ * <p>任意线程都可以调用{@link #offer(Object)}，{@link #poll()}只能在同一个消费者线程中调用。
+ * 生产者之间只竞争一次{@link AtomicReference#getAndSet(Object)}，不会阻塞。
+ * 生产者在getAndSet之后、链接节点之前，消费者会暂时看不到该节点以及之后的节点，
+ * 因此生产者需要在offer返回之后再通知消费者</p>
+ */
+public class MpscQueue<E> {
+
+    private static final class Node<E> {
+        private          E       value;
+        private volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<E>> tail;
+    private       Node<E>                  head;
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    public void offer(E value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        Node<E> node = new Node<>(value);
+        Node<E> previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * 只能在消费者线程调用
+     *
+     * @return 队列头部的元素，队列为空时返回null
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 按key合并并发执行的相同任务：同一时刻每个key只有一个调用者(leader)执行任务，
+ * 其他调用者等待并共享它的结果或异常
+ *
+ * <p>任务只在执行期间登记，执行完成后下一次调用会重新执行，不缓存结果。
+ * 除了在当前线程执行的{@link #execute(Object, Call)}，任务也可以通过{@link #begin(Object, Listener)}
+ * 分多个阶段在不同线程中执行，由leader最后调用{@link Ticket#complete(Object, Throwable)}或者{@link Ticket#abandon()}</p>
+ */
+public class SingleFlight<K, V> {
+
+    public interface Call<V> {
+        V call() throws IOException;
+    }
+
+    public interface Listener<V> {
+        /**
+         * 正在执行的相同任务结束，在leader的线程中回调
+         *
+         * @param abandoned leader放弃了任务，没有结果，需要重新调用{@link #begin(Object, Listener)}
+         */
+        void onComplete(V value, Throwable error, boolean abandoned);
+    }
+
+    /**
+     * 执行结果，{@link #shared}表示结果是否同时交给了多个调用者
+     */
+    public static final class Outcome<V> {
+        public final V       value;
+        public final boolean shared;
+        public final boolean joined;
+
+        Outcome(V value, boolean shared, boolean joined) {
+            this.value = value;
+            this.shared = shared;
+            this.joined = joined;
+        }
+    }
+
+    /**
+     * leader持有的任务，结束时必须调用{@link #complete(Object, Throwable)}或者{@link #abandon()}，重复调用会被忽略
+     */
+    public static final class Ticket<K, V> {
+        private final SingleFlight<K, V> owner;
+        private final K                  key;
+        private final Flight<V>          flight;
+
+        Ticket(SingleFlight<K, V> owner, K key, Flight<V> flight) {
+            this.owner = owner;
+            this.key = key;
+            this.flight = flight;
+        }
+
+        /**
+         * @return 结果是否同时交给了其他调用者
+         */
+        public boolean complete(V value, Throwable error) {
+            return owner.finish(key, flight, value, error, false);
+        }
+
+        /**
+         * 放弃任务，等待的调用者会重新执行
+         */
+        public void abandon() {
+            owner.finish(key, flight, null, null, true);
+        }
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * 没有正在执行的相同任务时在当前线程执行，否则等待正在执行的任务完成
+     *
+     * @throws InterruptedIOException 等待时线程被中断
+     */
+    public Outcome<V> execute(K key, Call<V> call) throws IOException {
+        if (key == null || call == null) {
+            throw new NullPointerException("key == null || call == null");
+        }
+        while (true) {
+            Flight<V> flight = new Flight<>();
+            Flight<V> existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return lead(new Ticket<>(this, key, flight), call);
+            }
+            if (existing.join(null)) {
+                existing.await();
+                synchronized (existing) {
+                    if (existing.abandoned) {
+                        continue;
+                    }
+                    if (existing.error != null) {
+                        rethrow(existing.error);
+                    }
+                    return new Outcome<>(existing.value, true, true);
+                }
+            }
+            // 已经执行完成，正在移除，帮助移除后重试
+            flights.remove(key, existing);
+        }
+    }
+
+    /**
+     * 没有正在执行的相同任务时登记任务，调用者成为leader；否则注册listener，任务结束时回调
+     *
+     * @return leader持有的Ticket，已经有正在执行的相同任务时返回null
+     */
+    public Ticket<K, V> begin(K key, Listener<V> listener) {
+        if (key == null || listener == null) {
+            throw new NullPointerException("key == null || listener == null");
+        }
+        while (true) {
+            Flight<V> flight = new Flight<>();
+            Flight<V> existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return new Ticket<>(this, key, flight);
+            }
+            if (existing.join(listener)) {
+                return null;
+            }
+            flights.remove(key, existing);
+        }
+    }
+
+    /**
+     * @return 正在执行的任务数
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private Outcome<V> lead(Ticket<K, V> ticket, Call<V> call) throws IOException {
+        V value = null;
+        Throwable error = null;
+        try {
+            value = call.call();
+        } catch (Throwable t) {
+            error = t;
+        }
+        boolean shared = ticket.complete(value, error);
+        if (error != null) {
+            rethrow(error);
+        }
+        return new Outcome<>(value, shared, false);
+    }
+
+    private boolean finish(K key, Flight<V> flight, V value, Throwable error, boolean abandoned) {
+        // 先关闭再移除，之后不会再有新的调用者加入
+        int joiners = flight.close();
+        if (joiners < 0) {
+            return false;
+        }
+        flights.remove(key, flight);
+        flight.complete(value, error, abandoned);
+        return joiners > 0;
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    private static final class Flight<V> {
+
+        private final CountDownLatch    latch = new CountDownLatch(1);
+        private       int               joiners;
+        private       boolean           closed;
+        private       boolean           abandoned;
+        private       V                 value;
+        private       Throwable         error;
+        private       List<Listener<V>> listeners;
+
+        synchronized boolean join(Listener<V> listener) {
+            if (closed) {
+                return false;
+            }
+            joiners++;
+            if (listener != null) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(2);
+                }
+                listeners.add(listener);
+            }
+            return true;
+        }
+
+        /**
+         * @return 加入的调用者数，已经关闭时返回-1
+         */
+        synchronized int close() {
+            if (closed) {
+                return -1;
+            }
+            closed = true;
+            return joiners;
+        }
+
+        void complete(V value, Throwable error, boolean abandoned) {
+            List<Listener<V>> toNotify;
+            synchronized (this) {
+                this.value = value;
+                this.error = error;
+                this.abandoned = abandoned;
+                toNotify = listeners;
+                listeners = null;
+            }
+            latch.countDown();
+            if (toNotify != null) {
+                for (int i = 0, n = toNotify.size(); i < n; i++) {
+                    toNotify.get(i).onComplete(value, error, abandoned);
+                }
+            }
+        }
+
+        void await() throws InterruptedIOException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for in-flight call");
+            }
+        }
+    }
+}
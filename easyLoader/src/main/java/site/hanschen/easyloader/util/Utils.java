@@ -240,6 +240,18 @@ final public class Utils {
         }
     }
 
+    /**
+     * 原始数据的缓存key，只与图片来源有关，不同尺寸以及变换的请求共用同一份原始数据
+     */
+    public static String createSourceKey(Request data) {
+        if (data.stableKey != null) {
+            return MD5Utils.getMD5(data.stableKey);
+        } else if (data.uri != null) {
+            return MD5Utils.getMD5(data.uri.toString());
+        }
+        return MD5Utils.getMD5(String.valueOf(data.resourceId));
+    }
+
     public static String createKey(Request data) {
         String result = createKey(data, MAIN_THREAD_KEY_BUILDER);
         MAIN_THREAD_KEY_BUILDER.setLength(0);
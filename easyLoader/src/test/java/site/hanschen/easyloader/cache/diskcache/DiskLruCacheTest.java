@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Hans Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package site.hanschen.easyloader.cache.diskcache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import site.hanschen.easyloader.bean.CacheMetadata;
+import site.hanschen.easyloader.cache.LruDiskCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 二进制journal的读写，以及从文本journal的迁移
+ */
+public class DiskLruCacheTest {
+
+    private static final int    APP_VERSION = 100;
+    private static final int    VALUE_COUNT = 2;
+    private static final long   MAX_SIZE    = 1024 * 1024;
+    private static final String KEY_A       = "0123456789abcdef0123456789abcdef";
+    private static final String KEY_B       = "fedcba9876543210fedcba9876543210";
+    private static final String KEY_C       = "00000000000000000000000000000000";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File         directory;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void legacyJournalIsMigratedToBinaryJournal() throws Exception {
+        writeLegacyJournal(VALUE_COUNT,
+                           "DIRTY " + KEY_A,
+                           "CLEAN " + KEY_A + " 3 1",
+                           "DIRTY " + KEY_B,
+                           "DIRTY not-a-hex-key",
+                           "CLEAN not-a-hex-key 4 0");
+        writeFile(new File(directory, KEY_A + ".0"), "abc");
+        writeFile(new File(directory, KEY_A + ".1"), "m");
+        writeFile(new File(directory, KEY_B + ".0.tmp"), "partial");
+        writeFile(new File(directory, "not-a-hex-key.0"), "data");
+        writeFile(new File(directory, "not-a-hex-key.1"), "");
+
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+
+        DiskLruCache.Value value = cache.get(KEY_A);
+        assertNotNull(value);
+        assertEquals("abc", value.getString(0));
+        assertEquals("m", value.getString(1));
+        assertNull(cache.get(KEY_B));
+        assertEquals(4, cache.size());
+
+        assertFalse(new File(directory, DiskLruCache.LEGACY_JOURNAL_FILE).exists());
+        assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+        // 二进制journal中无法保存的key和未完成的编辑被删除
+        assertFalse(new File(directory, "not-a-hex-key.0").exists());
+        assertFalse(new File(directory, "not-a-hex-key.1").exists());
+        assertFalse(new File(directory, KEY_B + ".0.tmp").exists());
+
+        // 再次打开时读取的是二进制journal
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertEquals("abc", cache.get(KEY_A).getString(0));
+    }
+
+    @Test
+    public void legacyJournalWithFewerValuesIsUpgraded() throws Exception {
+        writeLegacyJournal(1, "DIRTY " + KEY_A, "CLEAN " + KEY_A + " 3");
+        writeFile(new File(directory, KEY_A + ".0"), "abc");
+
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+
+        DiskLruCache.Value value = cache.get(KEY_A);
+        assertNotNull(value);
+        assertEquals("abc", value.getString(0));
+        assertEquals("", value.getString(1));
+        assertEquals(0, value.getLength(1));
+
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertNotNull(cache.get(KEY_A));
+    }
+
+    @Test
+    public void truncatedFinalRecordIsDropped() throws Exception {
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        set(KEY_A, "a", "1");
+        set(KEY_B, "b", "2");
+        cache.close();
+
+        // 最后一条CLEAN记录只写了一部分，KEY_B仍然是未完成的编辑
+        File journal = new File(directory, DiskLruCache.JOURNAL_FILE);
+        truncate(journal, journal.length() - 3);
+
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertEquals("a", cache.get(KEY_A).getString(0));
+        assertNull(cache.get(KEY_B));
+        assertFalse(new File(directory, KEY_B + ".0").exists());
+        assertEquals(0, (journal.length() - 16) % recordLength());
+
+        // 重建后的journal可以继续追加
+        set(KEY_C, "c", "3");
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertEquals("a", cache.get(KEY_A).getString(0));
+        assertEquals("c", cache.get(KEY_C).getString(0));
+    }
+
+    @Test
+    public void batchedReadsAreKeptAfterReopen() throws Exception {
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        set(KEY_A, "aa", "");
+        set(KEY_B, "bb", "");
+        // 超过一批的READ记录，部分由后台线程写入，其余在关闭时写入
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(cache.get(KEY_A));
+        }
+        cache.close();
+
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertEquals(4, cache.size());
+        // KEY_A最近被读取过，淘汰的是KEY_B
+        cache.trimToSize(2);
+        assertNotNull(cache.get(KEY_A));
+        assertNull(cache.get(KEY_B));
+    }
+
+    @Test
+    public void lruDiskCacheReadsLegacyEntries() throws Exception {
+        writeLegacyJournal(1, "DIRTY " + KEY_A, "CLEAN " + KEY_A + " 3");
+        writeFile(new File(directory, KEY_A + ".0"), "abc");
+
+        LruDiskCache<String> diskCache = new LruDiskCache<>(directory, MAX_SIZE, APP_VERSION, new StringConverter());
+
+        assertEquals("abc", diskCache.get(KEY_A));
+        CacheMetadata metadata = diskCache.getMetadata(KEY_A);
+        assertNotNull(metadata);
+        assertFalse(metadata.hasValidators());
+
+        diskCache.put(KEY_B, "new", new CacheMetadata("\"etag\"", null, CacheMetadata.NO_EXPIRY));
+        assertEquals("new", diskCache.get(KEY_B));
+        assertEquals("\"etag\"", diskCache.getMetadata(KEY_B).getEtag());
+    }
+
+    @Test
+    public void lruDiskCacheMigratesUnpartitionedEntries() throws Exception {
+        writeLegacyJournal(1, "DIRTY " + KEY_A, "CLEAN " + KEY_A + " 3");
+        writeFile(new File(directory, KEY_A + ".0"), "abc");
+
+        LruDiskCache<String> full = new LruDiskCache<>(new File(directory, "full"), MAX_SIZE, APP_VERSION, new StringConverter());
+        full.migrateFrom(directory);
+
+        assertEquals("abc", full.get(KEY_A));
+        assertFalse(new File(directory, DiskLruCache.LEGACY_JOURNAL_FILE).exists());
+        assertFalse(new File(directory, KEY_A + ".0").exists());
+    }
+
+    private void set(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    private static int recordLength() {
+        return 1 + 16 + 8 * VALUE_COUNT;
+    }
+
+    private void writeLegacyJournal(int valueCount, String... lines) throws IOException {
+        StringBuilder journal = new StringBuilder();
+        journal.append(DiskLruCache.MAGIC).append('\n')
+               .append(DiskLruCache.VERSION_1).append('\n')
+               .append(APP_VERSION).append('\n')
+               .append(valueCount).append('\n')
+               .append('\n');
+        for (String line : lines) {
+            journal.append(line).append('\n');
+        }
+        writeFile(new File(directory, DiskLruCache.LEGACY_JOURNAL_FILE), journal.toString());
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Util.UTF_8);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static class StringConverter implements LruDiskCache.FileConverter<String> {
+
+        @Override
+        public String readFrom(File file) {
+            try {
+                return new String(Util.readFully(file), Util.UTF_8);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean writeTo(String value, File to) {
+            OutputStream os = null;
+            try {
+                os = new FileOutputStream(to);
+                os.write(value.getBytes(Util.UTF_8));
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                Util.closeQuietly(os);
+            }
+        }
+    }
+}